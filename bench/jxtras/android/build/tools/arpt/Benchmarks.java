@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2022 Tony Guo. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jxtras.android.build.tools.arpt;
+
+import jxtras.android.build.tools.arpt.options.Options;
+import jxtras.android.build.tools.util.Log;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmarks of the pruning hot path on generated resource trees.
+ * <p>
+ * Each benchmark is run on a tree of every {@link TreeGenerator.Size}: parsing
+ * the rules, pruning the tree with just the rules of a single resource type,
+ * and full runs as done by {@link Main}, sequentially and in parallel, with
+ * and without a manifest, and with values files read and written by I/O
+ * threads. Each benchmark is warmed up before its invocations
+ * are measured, and the output dirs are removed between invocations without
+ * being measured. Usage:
+ * <pre>
+ * java -cp classes jxtras.android.build.tools.arpt.Benchmarks [-dir dir] [-sizes small,medium,large]
+ *         [-warmup count] [-iterations count] [-filter regex]
+ * </pre>
+ */
+public final class Benchmarks {
+
+    /**
+     * A single benchmark.
+     */
+    private interface Benchmark {
+        /** Called before each invocation, not measured */
+        default void setUp() throws Exception {
+        }
+
+        void run() throws Exception;
+    }
+
+    private static volatile Object sink;
+
+    private final Path dir;
+    private final int warmup;
+    private final int iterations;
+    private final Pattern filter;
+    private final PrintStream out = System.out;
+
+    private Benchmarks(Path dir, int warmup, int iterations, Pattern filter) {
+        this.dir = dir;
+        this.warmup = warmup;
+        this.iterations = iterations;
+        this.filter = filter;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Paths.get(System.getProperty("java.io.tmpdir"), "arpt-bench");
+        List<TreeGenerator.Size> sizes = Arrays.asList(TreeGenerator.Size.values());
+        int warmup = 5;
+        int iterations = 10;
+        Pattern filter = Pattern.compile(".*");
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-dir":
+                    dir = Paths.get(args[++i]);
+                    break;
+                case "-sizes":
+                    sizes = new ArrayList<>();
+                    for (String size : args[++i].split(",")) {
+                        sizes.add(TreeGenerator.Size.valueOf(size.trim().toUpperCase(Locale.ROOT)));
+                    }
+                    break;
+                case "-warmup":
+                    warmup = Integer.parseInt(args[++i]);
+                    break;
+                case "-iterations":
+                    iterations = Integer.parseInt(args[++i]);
+                    break;
+                case "-filter":
+                    filter = Pattern.compile(args[++i]);
+                    break;
+                default:
+                    System.err.println("arpt: unknown argument: " + args[i]);
+                    System.exit(-1);
+            }
+        }
+
+        Log.initializeLog(System.out, System.err);
+        Log.setLogLevel("warn");
+        final Benchmarks benchmarks = new Benchmarks(dir, warmup, iterations, filter);
+        benchmarks.out.println(String.format(Locale.ROOT, "%-32s %-8s %10s %10s %10s %10s",
+                "benchmark", "size", "mean ms", "p50 ms", "min ms", "max ms"));
+        for (TreeGenerator.Size size : sizes) {
+            benchmarks.runAll(size);
+        }
+    }
+
+    private void runAll(TreeGenerator.Size size) throws Exception {
+        final Path root = dir.resolve(size.name().toLowerCase(Locale.ROOT));
+        delete(root);
+        new TreeGenerator(size).generate(root);
+        final Path res = root.resolve("res");
+        final Path ruleFile = root.resolve("arpt.xml");
+        final Path output = root.resolve("out");
+
+        run("parseRules", size, () -> sink = Rule.parseRules(ruleFile.toFile()));
+
+        for (String type : TreeGenerator.getValueTypes()) {
+            final RemovalIndex index = RemovalIndex.build(
+                    Rule.parseRules(root.resolve("arpt-" + type + ".xml").toFile()), TreeGenerator.TARGET);
+            run("prune:" + type, size, new Benchmark() {
+                @Override
+                public void setUp() throws IOException {
+                    delete(output);
+                }
+
+                @Override
+                public void run() throws IOException {
+                    new Pruner(index).prune(res, output);
+                }
+            });
+        }
+
+        final String parallelism = Integer.toString(Runtime.getRuntime().availableProcessors());
+        run("main", size, main(output, "-rule", ruleFile.toString(), "-target", TreeGenerator.TARGET,
+                "-in", res.toString(), "-out", output.toString()));
+        run("main:parallel", size, main(output, "-rule", ruleFile.toString(), "-target", TreeGenerator.TARGET,
+                "-in", res.toString(), "-out", output.toString(), "-j", parallelism));
+        run("main:io", size, main(output, "-rule", ruleFile.toString(), "-target", TreeGenerator.TARGET,
+                "-in", res.toString(), "-out", output.toString(), "-io", parallelism));
+        run("main:transitive", size, main(output, "-rule", ruleFile.toString(), "-target", TreeGenerator.TARGET,
+                "-in", res.toString(), "-out", output.toString(), "-j", parallelism, "-transitive"));
+
+        // keeps the manifest and output between invocations, so this measures no-op incremental runs
+        final Path manifest = root.resolve("arpt.manifest");
+        delete(output);
+        Files.deleteIfExists(manifest);
+        run("main:incremental", size, () -> execute("-rule", ruleFile.toString(), "-target", TreeGenerator.TARGET,
+                "-incremental", manifest.toString(), "-in", res.toString(), "-out", output.toString()));
+    }
+
+    private static Benchmark main(Path output, String... args) {
+        return new Benchmark() {
+            @Override
+            public void setUp() throws IOException {
+                delete(output);
+            }
+
+            @Override
+            public void run() {
+                execute(args);
+            }
+        };
+    }
+
+    private static void execute(String... args) {
+        final int rc = new Main().execute(Options.parseArgs(args));
+        if (rc != 0) {
+            throw new IllegalStateException("arpt: run failed with " + rc + ": " + String.join(" ", args));
+        }
+    }
+
+    private void run(String name, TreeGenerator.Size size, Benchmark benchmark) throws Exception {
+        if (!filter.matcher(name).matches()) {
+            return;
+        }
+        for (int i = 0; i < warmup; i++) {
+            benchmark.setUp();
+            benchmark.run();
+        }
+        final long[] nanos = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            benchmark.setUp();
+            final long start = System.nanoTime();
+            benchmark.run();
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        long total = 0;
+        for (long n : nanos) {
+            total += n;
+        }
+        out.println(String.format(Locale.ROOT, "%-32s %-8s %10.3f %10.3f %10.3f %10.3f", name,
+                size.name().toLowerCase(Locale.ROOT), toMillis(total / Math.max(1, iterations)),
+                toMillis(nanos.length > 0 ? nanos[(nanos.length - 1) / 2] : 0),
+                toMillis(nanos.length > 0 ? nanos[0] : 0), toMillis(nanos.length > 0 ? nanos[nanos.length - 1] : 0)));
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static void delete(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2022 Tony Guo. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jxtras.android.build.tools.arpt;
+
+import jxtras.android.build.tools.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates synthetic resource trees which look like the ones of a real app,
+ * together with matching rule files.
+ * <p>
+ * A tree has a {@code values} dir and one {@code values-*} dir per locale, each
+ * with strings, plurals and string arrays referencing the strings, a {@code
+ * values} dir with dimens, colors and {@code <item type>} declarations, and
+ * drawables for several densities, some of them referenced by selectors. The
+ * rules remove every {@link #REMOVED_EVERY}th resource of each type for the
+ * target {@link #TARGET}, plus the strings matching a glob, and keep as many
+ * resources available to it.
+ */
+final class TreeGenerator {
+    static final String TARGET = "bench";
+    static final int REMOVED_EVERY = 4;
+
+    private static final String[] LOCALES = {
+            "fr", "de", "es", "it", "ja", "ko", "pt-rBR", "ru", "zh-rCN", "zh-rTW", "ar", "hi", "nl", "pl", "sv", "tr",
+            "th", "vi", "id", "cs", "da", "fi", "el", "he", "hu", "nb", "ro", "sk", "uk", "en-rGB", "en-rIN", "ms"
+    };
+    private static final String[] DENSITIES = { "mdpi", "hdpi", "xhdpi", "xxhdpi", "xxxhdpi" };
+
+    /**
+     * The dimensions of a generated tree.
+     */
+    enum Size {
+        SMALL(4, 200, 2),
+        MEDIUM(12, 1000, 3),
+        LARGE(32, 4000, 5);
+
+        final int locales;
+        final int strings;
+        final int densities;
+
+        Size(int locales, int strings, int densities) {
+            this.locales = locales;
+            this.strings = strings;
+            this.densities = densities;
+        }
+
+        int plurals() {
+            return strings / 10;
+        }
+
+        int arrays() {
+            return strings / 20;
+        }
+
+        int dimens() {
+            return strings / 5;
+        }
+
+        int drawables() {
+            return strings / 10;
+        }
+    }
+
+    private final Size size;
+    private final Random random = new Random(42);
+
+    TreeGenerator(@NonNull Size size) {
+        this.size = size;
+    }
+
+    /**
+     * Writes the resource tree to {@code dir/res} and the rules to {@code
+     * dir/arpt.xml}, and for each value resource type {@code t} a rule file
+     * {@code dir/arpt-t.xml} with just the rules of that type.
+     */
+    void generate(@NonNull Path dir) throws IOException {
+        final Path res = dir.resolve("res");
+        writeValues(res.resolve("values"), null);
+        for (int i = 0; i < size.locales; i++) {
+            writeValues(res.resolve("values-" + LOCALES[i % LOCALES.length]), LOCALES[i % LOCALES.length]);
+        }
+        writeDimens(res.resolve("values"));
+        writeDrawables(res);
+
+        write(dir.resolve("arpt.xml"), rules(null));
+        for (String type : getValueTypes()) {
+            write(dir.resolve("arpt-" + type + ".xml"), rules(type));
+        }
+    }
+
+    static @NonNull String[] getValueTypes() {
+        return new String[] { "string", "string-array", "plurals", "dimen", "color" };
+    }
+
+    private void writeValues(Path dir, String locale) throws IOException {
+        final StringBuilder xml = header();
+        final String suffix = locale != null ? " (" + locale + ")" : "";
+        for (int i = 0; i < size.strings; i++) {
+            xml.append("    <string name=\"").append(stringName(i)).append("\">")
+                    .append(words(3 + random.nextInt(8))).append(suffix).append("</string>\n");
+            if (i % 25 == 0) {
+                xml.append("    <!-- section ").append(i / 25).append(" -->\n");
+            }
+        }
+        for (int i = 0; i < size.plurals(); i++) {
+            xml.append("    <plurals name=\"plural_").append(i).append("\">\n")
+                    .append("        <item quantity=\"one\">%d ").append(words(2)).append(suffix).append("</item>\n")
+                    .append("        <item quantity=\"other\">%d ").append(words(2)).append(suffix).append("</item>\n")
+                    .append("    </plurals>\n");
+        }
+        for (int i = 0; i < size.arrays(); i++) {
+            xml.append("    <string-array name=\"array_").append(i).append("\">\n");
+            for (int j = 0; j < 4; j++) {
+                xml.append("        <item>@string/").append(stringName((i * 4 + j) % size.strings)).append("</item>\n");
+            }
+            xml.append("    </string-array>\n");
+        }
+        write(dir.resolve("strings.xml"), xml.append("</resources>\n"));
+    }
+
+    private void writeDimens(Path dir) throws IOException {
+        final StringBuilder xml = header();
+        for (int i = 0; i < size.dimens(); i++) {
+            xml.append("    <dimen name=\"dimen_").append(i).append("\">").append(random.nextInt(64))
+                    .append("dp</dimen>\n");
+            xml.append("    <color name=\"color_").append(i).append("\">#")
+                    .append(String.format(Locale.ROOT, "%06x", random.nextInt(0x1000000))).append("</color>\n");
+            if (i % 10 == 0) {
+                xml.append("    <item type=\"dimen\" name=\"item_dimen_").append(i).append("\">")
+                        .append(random.nextInt(64)).append("dp</item>\n");
+            }
+        }
+        write(dir.resolve("dimens.xml"), xml.append("</resources>\n"));
+    }
+
+    private void writeDrawables(Path res) throws IOException {
+        final byte[] png = new byte[512];
+        for (int d = 0; d < size.densities; d++) {
+            final Path dir = res.resolve("drawable-" + DENSITIES[d]);
+            Files.createDirectories(dir);
+            for (int i = 0; i < size.drawables(); i++) {
+                random.nextBytes(png);
+                Files.write(dir.resolve("icon_" + i + ".png"), png);
+            }
+        }
+        for (int i = 0; i < size.drawables(); i += 2) {
+            write(res.resolve("drawable").resolve("selector_" + i + ".xml"), new StringBuilder()
+                    .append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n")
+                    .append("<selector xmlns:android=\"http://schemas.android.com/apk/res/android\">\n")
+                    .append("    <item android:state_pressed=\"true\" android:drawable=\"@drawable/icon_").append(i)
+                    .append("\"/>\n")
+                    .append("    <item android:drawable=\"@drawable/icon_").append(i + 1).append("\"/>\n")
+                    .append("</selector>\n"));
+        }
+    }
+
+    /**
+     * Get the rules of the given type, or all rules if the type is null.
+     */
+    private CharSequence rules(String type) {
+        final StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n<resources>\n");
+        if (type == null || type.equals("string")) {
+            rule(xml, "string", size.strings, "");
+            xml.append("    <string availability=\"other\">\n")
+                    .append("        <item>str_1?7*</item>\n")
+                    .append("    </string>\n");
+        }
+        if (type == null || type.equals("string-array")) {
+            rule(xml, "string-array", size.arrays(), "array_");
+        }
+        if (type == null || type.equals("plurals")) {
+            rule(xml, "plurals", size.plurals(), "plural_");
+        }
+        if (type == null || type.equals("dimen")) {
+            rule(xml, "dimen", size.dimens(), "dimen_");
+        }
+        if (type == null || type.equals("color")) {
+            rule(xml, "color", size.dimens(), "color_");
+        }
+        if (type == null) {
+            xml.append("    <file availability=\"other\">\n");
+            for (int i = 1; i < size.drawables(); i += 2 * REMOVED_EVERY) {
+                xml.append("        <item>drawable/icon_").append(i).append("</item>\n");
+            }
+            xml.append("    </file>\n");
+        }
+        return xml.append("</resources>\n");
+    }
+
+    private static void rule(StringBuilder xml, String tag, int count, String prefix) {
+        xml.append("    <").append(tag).append(" availability=\"other\">\n");
+        for (int i = 0; i < count; i += REMOVED_EVERY) {
+            xml.append("        <item>").append(prefix.isEmpty() ? stringName(i) : prefix + i).append("</item>\n");
+        }
+        xml.append("    </").append(tag).append(">\n");
+        xml.append("    <").append(tag).append(" availability=\"other|").append(TARGET).append("\">\n");
+        for (int i = 1; i < count; i += REMOVED_EVERY) {
+            xml.append("        <item>").append(prefix.isEmpty() ? stringName(i) : prefix + i).append("</item>\n");
+        }
+        xml.append("    </").append(tag).append(">\n");
+    }
+
+    private static String stringName(int i) {
+        return "str_" + i;
+    }
+
+    private String words(int count) {
+        final StringBuilder words = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                words.append(' ');
+            }
+            final int length = 2 + random.nextInt(8);
+            for (int j = 0; j < length; j++) {
+                words.append((char) ('a' + random.nextInt(26)));
+            }
+        }
+        return words.toString();
+    }
+
+    private static StringBuilder header() {
+        return new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n")
+                .append("<resources xmlns:tools=\"http://schemas.android.com/tools\">\n");
+    }
+
+    private static void write(Path file, CharSequence content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
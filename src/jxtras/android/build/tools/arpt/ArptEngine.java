@@ -0,0 +1,539 @@
+/*
+ * Copyright (C) 2022 Tony Guo. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jxtras.android.build.tools.arpt;
+
+import jxtras.android.build.tools.annotation.NonNull;
+import jxtras.android.build.tools.annotation.Nullable;
+import jxtras.android.build.tools.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Prunes resources in process, e.g. in the long-lived worker of a build
+ * system, without spawning arpt for every module.
+ * <p>
+ * An engine is thread-safe and keeps the compiled rules of every rule file it
+ * has seen (see {@link #compile(Path)}) for later requests, as long as the
+ * content of the rule file doesn't change. Each {@link Request} may bring its
+ * own {@link Log.Sink} and {@link Metrics}, so concurrent requests don't mix
+ * up their logs, and gets a {@link Result} instead of an exit code only.
+ * <pre>
+ * final ArptEngine engine = new ArptEngine();
+ * final ArptEngine.Result result = engine.prune(ArptEngine.Request.builder()
+ *         .rules(engine.compile(ruleFile))
+ *         .target("product")
+ *         .inputDir(resDir)
+ *         .outputDir(outputDir)
+ *         .sink((level, msg) -> logger.log(level, msg))
+ *         .build());
+ * </pre>
+ */
+public class ArptEngine {
+
+    /**
+     * What to prune, and how.
+     */
+    public static final class Request {
+        private final RulePlan rules;
+        private final Path ruleFile;
+        private final List<String> targetProducts;
+        private final boolean outputDirPerTarget;
+        private final List<Path> resourceDirs;
+        private final Path inputDir;
+        private final Path outputDir;
+        private final Path manifestFile;
+        private final Manifest manifest;
+        private final Path planCacheDir;
+        private final Path cacheDir;
+        private final OutputCache cache;
+        private final long cacheSize;
+        private final int parallelism;
+        private final ForkJoinPool pool;
+        private final boolean transitive;
+        private final boolean dedupe;
+        private final int ioThreads;
+        private final long maxInFlight;
+        private final Log.Sink sink;
+        private final int logLevel;
+        private final Metrics metrics;
+
+        private Request(Builder builder) {
+            rules = builder.rules;
+            ruleFile = builder.ruleFile;
+            targetProducts = Collections.unmodifiableList(new ArrayList<>(builder.targetProducts));
+            outputDirPerTarget = builder.outputDirPerTarget;
+            resourceDirs = Collections.unmodifiableList(new ArrayList<>(builder.resourceDirs));
+            inputDir = builder.inputDir;
+            outputDir = builder.outputDir;
+            manifestFile = builder.manifestFile;
+            manifest = builder.manifest;
+            planCacheDir = builder.planCacheDir;
+            cacheDir = builder.cacheDir;
+            cache = builder.cache;
+            cacheSize = builder.cacheSize;
+            parallelism = builder.parallelism;
+            pool = builder.pool;
+            transitive = builder.transitive;
+            dedupe = builder.dedupe;
+            ioThreads = builder.ioThreads;
+            maxInFlight = builder.maxInFlight;
+            sink = builder.sink;
+            logLevel = builder.logLevel;
+            metrics = builder.metrics;
+        }
+
+        public static @NonNull Builder builder() {
+            return new Builder();
+        }
+
+        public @NonNull List<String> getTargetProducts() {
+            return targetProducts;
+        }
+
+        /**
+         * Get the output dir of each target product, which is the output dir
+         * itself for a single {@link Builder#target(String)} and a sub dir of
+         * it named after the target product for {@link
+         * Builder#targets(Collection)}. When the input is an archive, these
+         * are output archives, e.g. {@code product.zip} below the output dir
+         * for several target products. Empty when pruning in place.
+         */
+        public @NonNull Map<String, Path> getOutputDirs() {
+            final Map<String, Path> outputDirs = new LinkedHashMap<>();
+            if (outputDir != null) {
+                final String suffix = Files.isRegularFile(inputDir) ? ".zip" : "";
+                for (String targetProduct : targetProducts) {
+                    outputDirs.put(targetProduct,
+                            outputDirPerTarget ? outputDir.resolve(targetProduct + suffix) : outputDir);
+                }
+            }
+            return outputDirs;
+        }
+    }
+
+    /**
+     * Builds a {@link Request}, either pruning resource dirs in place or an
+     * input dir into an output dir.
+     */
+    public static final class Builder {
+        private RulePlan rules;
+        private Path ruleFile;
+        private final List<String> targetProducts = new ArrayList<>();
+        private boolean outputDirPerTarget;
+        private final List<Path> resourceDirs = new ArrayList<>();
+        private Path inputDir;
+        private Path outputDir;
+        private Path manifestFile;
+        private Manifest manifest;
+        private Path planCacheDir;
+        private Path cacheDir;
+        private OutputCache cache;
+        private long cacheSize = 1024L * 1024L * 1024L;
+        private int parallelism = 1;
+        private ForkJoinPool pool;
+        private boolean transitive;
+        private boolean dedupe;
+        private int ioThreads;
+        private long maxInFlight = 64L * 1024L * 1024L;
+        private Log.Sink sink;
+        private int logLevel = Log.INFO;
+        private Metrics metrics;
+
+        private Builder() {
+        }
+
+        /** Sets the compiled rules, see {@link ArptEngine#compile(Path)} */
+        public @NonNull Builder rules(@NonNull RulePlan rules) {
+            this.rules = rules;
+            return this;
+        }
+
+        /** Sets the rule file, which is compiled by the engine unless {@link #rules(RulePlan)} is set */
+        public @NonNull Builder ruleFile(@NonNull Path ruleFile) {
+            this.ruleFile = ruleFile;
+            return this;
+        }
+
+        /** Prunes for a single target product */
+        public @NonNull Builder target(@NonNull String targetProduct) {
+            targetProducts.clear();
+            targetProducts.add(targetProduct);
+            outputDirPerTarget = false;
+            return this;
+        }
+
+        /** Prunes for several target products, each into a sub dir of the output dir named after it */
+        public @NonNull Builder targets(@NonNull Collection<String> targetProducts) {
+            this.targetProducts.clear();
+            this.targetProducts.addAll(targetProducts);
+            outputDirPerTarget = true;
+            return this;
+        }
+
+        /** Adds a resource dir to be pruned in place */
+        public @NonNull Builder resourceDir(@NonNull Path resourceDir) {
+            resourceDirs.add(resourceDir);
+            return this;
+        }
+
+        /** Sets the dir (or zip archive) to prune out of place */
+        public @NonNull Builder inputDir(@Nullable Path inputDir) {
+            this.inputDir = inputDir;
+            return this;
+        }
+
+        /** Sets the dir (or zip archive, if the input is one) to write the pruned resources of the input to */
+        public @NonNull Builder outputDir(@Nullable Path outputDir) {
+            this.outputDir = outputDir;
+            return this;
+        }
+
+        /** Enables incremental pruning with the given manifest */
+        public @NonNull Builder manifestFile(@Nullable Path manifestFile) {
+            this.manifestFile = manifestFile;
+            return this;
+        }
+
+        /** Shares the given manifest with other requests, it's saved by the caller instead of the request */
+        public @NonNull Builder manifest(@Nullable Manifest manifest) {
+            this.manifest = manifest;
+            return this;
+        }
+
+        /** Sets the directory to cache compiled rule plans in */
+        public @NonNull Builder planCacheDir(@Nullable Path planCacheDir) {
+            this.planCacheDir = planCacheDir;
+            return this;
+        }
+
+        /** Sets the directory to cache pruned values files in, see {@link OutputCache} */
+        public @NonNull Builder cacheDir(@Nullable Path cacheDir) {
+            this.cacheDir = cacheDir;
+            return this;
+        }
+
+        /** Shares the given cache of pruned values files with other requests, it's trimmed by the caller */
+        public @NonNull Builder cache(@Nullable OutputCache cache) {
+            this.cache = cache;
+            return this;
+        }
+
+        /** Sets the size in bytes the cache of pruned values files is trimmed to */
+        public @NonNull Builder cacheSize(long cacheSize) {
+            this.cacheSize = cacheSize;
+            return this;
+        }
+
+        /** Sets the number of threads used for pruning */
+        public @NonNull Builder parallelism(int parallelism) {
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        /** Shares the given pool with other requests to prune files on, instead of a pool of its own */
+        public @NonNull Builder pool(@Nullable ForkJoinPool pool) {
+            this.pool = pool;
+            return this;
+        }
+
+        /** Also removes resources only referenced by removed resources, see {@link ReferenceGraph} */
+        public @NonNull Builder transitive(boolean transitive) {
+            this.transitive = transitive;
+            return this;
+        }
+
+        /** Also removes resources identical to the ones they fall back to, see {@link Deduper} */
+        public @NonNull Builder dedupe(boolean dedupe) {
+            this.dedupe = dedupe;
+            return this;
+        }
+
+        /** Sets the number of threads reading and writing values files, see {@link Pipeline} */
+        public @NonNull Builder ioThreads(int ioThreads) {
+            this.ioThreads = ioThreads;
+            return this;
+        }
+
+        /** Sets the bytes of values files read but not yet written at most, see {@link Pipeline} */
+        public @NonNull Builder maxInFlight(long maxInFlight) {
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /** Sets the sink receiving the log of the request, the log goes to the streams of {@link Log} by default */
+        public @NonNull Builder sink(@Nullable Log.Sink sink) {
+            this.sink = sink;
+            return this;
+        }
+
+        /** Sets the log level of the request, e.g. {@link Log#INFO} (the default) */
+        public @NonNull Builder logLevel(int logLevel) {
+            this.logLevel = logLevel;
+            return this;
+        }
+
+        /**
+         * Sets the metrics to record counters and timings into, e.g. to sum
+         * them up across requests, they're logged by the caller instead of
+         * the request
+         */
+        public @NonNull Builder metrics(@Nullable Metrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public @NonNull Request build() {
+            return new Request(this);
+        }
+    }
+
+    /**
+     * The outcome of a {@link Request}.
+     */
+    public static final class Result {
+        private final int exitCode;
+        private final Metrics metrics;
+        private final List<String> errors;
+        private final Map<String, Path> outputDirs;
+
+        private Result(int exitCode, @NonNull Metrics metrics, @NonNull List<String> errors,
+                       @NonNull Map<String, Path> outputDirs) {
+            this.exitCode = exitCode;
+            this.metrics = metrics;
+            this.errors = Collections.unmodifiableList(new ArrayList<>(errors));
+            this.outputDirs = Collections.unmodifiableMap(outputDirs);
+        }
+
+        /**
+         * Get the exit code arpt would exit with, 0 on success.
+         */
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        public boolean isSuccess() {
+            return exitCode == 0 && errors.isEmpty();
+        }
+
+        /**
+         * Get the counters and timings of the request.
+         */
+        public @NonNull Metrics getMetrics() {
+            return metrics;
+        }
+
+        /**
+         * Get the errors logged while handling the request, in order.
+         */
+        public @NonNull List<String> getErrors() {
+            return errors;
+        }
+
+        /**
+         * Get the output dir of each target product, see {@link Request#getOutputDirs()}.
+         */
+        public @NonNull Map<String, Path> getOutputDirs() {
+            return outputDirs;
+        }
+    }
+
+    private final Map<Path, RulePlan> plans = new HashMap<>();
+
+    /**
+     * Get the compiled rules of the given rule file, which are kept for later
+     * requests as long as the content of the rule file doesn't change.
+     */
+    public synchronized @NonNull RulePlan compile(@NonNull Path ruleFile) throws IOException {
+        final Path key = ruleFile.toAbsolutePath().normalize();
+        final RulePlan plan = RulePlan.of(ruleFile);
+        final RulePlan cached = plans.get(key);
+        if (cached != null && cached.getDigest().equals(plan.getDigest())) {
+            return cached;
+        }
+        plans.put(key, plan);
+        return plan;
+    }
+
+    /**
+     * Handles the given request, everything it logs goes to its sink. What
+     * the request shares with others, i.e. its manifest, cache and metrics,
+     * is left to the caller to save, trim and log.
+     */
+    public @NonNull Result prune(@NonNull Request request) {
+        final Log.Sink sink = request.sink != null ? request.sink : Log.STREAMS;
+        final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+        final Metrics metrics = request.metrics != null ? request.metrics : new Metrics();
+        final int rc = Log.withSink((level, msg) -> {
+            if (level == Log.ERROR) {
+                errors.add(msg);
+            }
+            sink.log(level, msg);
+        }, request.logLevel, () -> {
+            final OutputCache cache = request.cache != null ? request.cache
+                    : request.cacheDir != null ? new OutputCache(request.cacheDir, request.cacheSize) : null;
+            final int result = run(request, metrics, cache);
+            if (cache != null && cache != request.cache) {
+                cache.trim();
+            }
+            if (request.metrics == null) {
+                metrics.log();
+            }
+            return result;
+        });
+        return new Result(rc, metrics, errors, request.getOutputDirs());
+    }
+
+    private int run(@NonNull Request request, @NonNull Metrics metrics, @Nullable OutputCache cache) {
+        final String err = validate(request);
+        if (err != null) {
+            Log.error(err);
+            return -1;
+        }
+        try {
+            final long start = System.nanoTime();
+            final RulePlan plan;
+            if (request.rules != null) {
+                plan = request.rules;
+            } else if (Files.isRegularFile(request.ruleFile)) {
+                plan = compile(request.ruleFile);
+            } else {
+                Log.error("arpt: ruleFile does not exist");
+                return -1;
+            }
+
+            final Map<String, RemovalIndex> indexes = new LinkedHashMap<>();
+            for (String targetProduct : request.targetProducts) {
+                if (targetProduct.isEmpty()) {
+                    Log.error("arpt: target product not provided");
+                    return -1;
+                }
+                final RemovalIndex index = plan.resolve(targetProduct, request.planCacheDir);
+                if (index == null) {
+                    return -1;
+                }
+                index.logSkipped(targetProduct);
+                indexes.put(targetProduct, index);
+            }
+            if (request.inputDir == null) {
+                final Map.Entry<String, RemovalIndex> entry = indexes.entrySet().iterator().next();
+                if (entry.getValue().isEmpty() && !request.dedupe) {
+                    Log.info("arpt: no resources to be removed for target '" + entry.getKey() + "'");
+                    return 0;
+                } else if (request.resourceDirs.isEmpty()) {
+                    Log.info("arpt: resDirs is empty or not provided");
+                    return 0;
+                }
+            }
+            metrics.record(Metrics.Phase.RULES, start);
+
+            final Pruner pruner = new Pruner(indexes, request.parallelism);
+            final Manifest manifest = request.manifest != null ? request.manifest
+                    : request.manifestFile != null ? Manifest.load(request.manifestFile) : null;
+            pruner.setManifest(manifest);
+            pruner.setCache(cache);
+            pruner.setPool(request.pool);
+            pruner.setMetrics(metrics);
+            pruner.setTransitive(request.transitive);
+            pruner.setDedupe(request.dedupe);
+            pruner.setPipelining(request.ioThreads, request.maxInFlight);
+            final int rc = request.inputDir != null
+                    ? pruneInto(request.inputDir, request.outputDir, request.getOutputDirs(), pruner)
+                    : prune(request.resourceDirs, pruner);
+            if (manifest != null && manifest != request.manifest && rc == 0) {
+                manifest.save();
+            }
+            return rc;
+        } catch (Exception e) {
+            Log.error("arpt: exception occurred: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    private static @Nullable String validate(@NonNull Request request) {
+        if (request.rules == null && request.ruleFile == null) {
+            return "arpt: rules not provided";
+        } else if (request.targetProducts.isEmpty()) {
+            return "arpt: target product not provided";
+        } else if (request.outputDirPerTarget && request.inputDir == null) {
+            return "arpt: several target products require an input and an output dir";
+        } else if ((request.inputDir == null) != (request.outputDir == null)) {
+            return "arpt: input dir and output dir must be used together";
+        } else if (request.inputDir != null && !request.resourceDirs.isEmpty()) {
+            return "arpt: input dir can't be combined with resource dirs pruned in place";
+        }
+        return null;
+    }
+
+    /**
+     * Prunes the given resource dirs in place, missing dirs are skipped.
+     */
+    private static int prune(@NonNull List<Path> resDirs, @NonNull Pruner pruner) {
+        final List<File> dirs = new ArrayList<>();
+        for (Path resDir : resDirs) {
+            if (!Files.exists(resDir) || !Files.isDirectory(resDir)) {
+                Log.warn("arpt: resDir does not exist: " + resDir);
+                continue;
+            }
+            dirs.add(resDir.toFile());
+        }
+        pruner.prune(dirs);
+        return 0;
+    }
+
+    /**
+     * Prunes the input dir into the output dir of each target product, which
+     * are all below the given output dir. An input archive is pruned into an
+     * output archive of each target product instead, see {@link
+     * Pruner#pruneArchive(Path, Map)}.
+     */
+    private static int pruneInto(@NonNull Path inputDir, @NonNull Path outputDir, @NonNull Map<String, Path> outputDirs,
+                                 @NonNull Pruner pruner) throws IOException {
+        final Path input = inputDir.toAbsolutePath().normalize();
+        final Path output = outputDir.toAbsolutePath().normalize();
+        if (Files.isRegularFile(inputDir)) {
+            if (output.equals(input) || outputDirs.containsValue(inputDir)) {
+                Log.error("arpt: input archive and output archive must differ");
+                return -1;
+            }
+            pruner.pruneArchive(inputDir, outputDirs);
+            return 0;
+        }
+        if (!Files.isDirectory(inputDir)) {
+            Log.error("arpt: input dir does not exist: " + inputDir);
+            return -1;
+        }
+        if (output.startsWith(input) || input.startsWith(output)) {
+            Log.error("arpt: input dir and output dir must not contain each other");
+            return -1;
+        }
+        for (Path dir : outputDirs.values()) {
+            Files.createDirectories(dir);
+        }
+        pruner.prune(inputDir, outputDirs);
+        return 0;
+    }
+}
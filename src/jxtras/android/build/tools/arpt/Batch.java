@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2022 Tony Guo. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jxtras.android.build.tools.arpt;
+
+import jxtras.android.build.tools.annotation.NonNull;
+import jxtras.android.build.tools.annotation.Nullable;
+import jxtras.android.build.tools.arpt.options.Options;
+import jxtras.android.build.tools.util.Log;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prunes all modules listed in a batch file in one go.
+ * <p>
+ * Each non-empty line of the batch file, except comments starting with
+ * {@code #}, lists the rule file, the target product and the resource dir of a
+ * module, optionally followed by an output dir to prune the resource dir into
+ * instead of pruning it in place. Relative paths are resolved against the dir
+ * of the batch file.
+ * <p>
+ * Modules and their files are pruned on one shared pool, so that large and
+ * small modules are balanced across all threads, and a rule file shared by
+ * several modules is only parsed once. The log of each module is printed in
+ * the order of the batch file, followed by a summary of all modules.
+ */
+public class Batch {
+
+    private Batch() {
+    }
+
+    /**
+     * A module listed in the batch file.
+     */
+    private static final class Module {
+        final Path ruleFile;
+        final String targetProduct;
+        final Path resDir;
+        final Path outputDir;
+        int rc = -1;
+        long millis;
+
+        Module(@NonNull Path ruleFile, @NonNull String targetProduct,
+               @NonNull Path resDir, @Nullable Path outputDir) {
+            this.ruleFile = ruleFile;
+            this.targetProduct = targetProduct;
+            this.resDir = resDir;
+            this.outputDir = outputDir;
+        }
+    }
+
+    public static int run(@NonNull ArptEngine engine, @NonNull Options options, @NonNull Metrics metrics,
+                          @Nullable OutputCache cache) {
+        final Path batchFile = options.getBatchFile();
+        final List<Module> modules;
+        try {
+            modules = read(batchFile);
+        } catch (IOException e) {
+            Log.error("arpt: failed to read batch file: " + batchFile + ": " + e.getMessage());
+            return -1;
+        } catch (IllegalArgumentException e) {
+            Log.error(e.getMessage());
+            return -1;
+        }
+
+        final Manifest manifest = options.getManifestFile() != null ? Manifest.load(options.getManifestFile()) : null;
+        final long start = System.nanoTime();
+        final int parallelism = options.getParallelism();
+        if (parallelism <= 1) {
+            for (Module module : modules) {
+                prune(engine, module, options, manifest, metrics, cache, null);
+            }
+        } else {
+            final ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                final List<ForkJoinTask<Log.Buffer>> results = new ArrayList<>(modules.size());
+                for (Module module : modules) {
+                    results.add(pool.submit(Log.captured(
+                            () -> prune(engine, module, options, manifest, metrics, cache, pool))));
+                }
+                for (ForkJoinTask<Log.Buffer> result : results) {
+                    result.join().flush();
+                }
+            } finally {
+                pool.shutdown();
+            }
+        }
+        final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        if (manifest != null) {
+            try {
+                manifest.save();
+            } catch (IOException e) {
+                Log.error("arpt: failed to save manifest: " + e.getMessage());
+            }
+        }
+
+        int failed = 0;
+        Log.info("arpt: batch summary:");
+        for (Module module : modules) {
+            if (module.rc != 0) {
+                failed++;
+            }
+            Log.info(String.format("    %-6s %6dms  %s [%s]", module.rc == 0 ? "ok" : "FAILED",
+                    module.millis, module.resDir, module.targetProduct));
+        }
+        Log.info("arpt: " + (modules.size() - failed) + "/" + modules.size()
+                + " module(s) pruned successfully in " + millis + "ms");
+        if (failed > 0) {
+            Log.error("arpt: " + failed + " module(s) failed, see the log above");
+            return -1;
+        }
+        return 0;
+    }
+
+    private static void prune(@NonNull ArptEngine engine, @NonNull Module module, @NonNull Options options,
+                              @Nullable Manifest manifest, @NonNull Metrics metrics,
+                              @Nullable OutputCache cache, @Nullable ForkJoinPool pool) {
+        final long start = System.nanoTime();
+        Log.info("arpt: pruning module: " + module.resDir + " [" + module.targetProduct + "]");
+        try {
+            if (!Files.isRegularFile(module.ruleFile)) {
+                Log.error("arpt: ruleFile does not exist: " + module.ruleFile);
+            } else {
+                final ArptEngine.Builder builder = ArptEngine.Request.builder()
+                        .ruleFile(module.ruleFile)
+                        .target(module.targetProduct)
+                        .manifest(manifest)
+                        .planCacheDir(options.getPlanCacheDir())
+                        .cache(cache)
+                        .parallelism(options.getParallelism())
+                        .pool(pool)
+                        .transitive(options.isTransitive())
+                        .dedupe(options.isDedupe())
+                        .ioThreads(options.getIoThreads())
+                        .maxInFlight(options.getInFlight() * 1024L * 1024L)
+                        .logLevel(Log.getLogLevel())
+                        .metrics(metrics);
+                if (module.outputDir != null) {
+                    builder.inputDir(module.resDir).outputDir(module.outputDir);
+                } else {
+                    builder.resourceDir(module.resDir);
+                }
+                module.rc = engine.prune(builder.build()).getExitCode();
+            }
+        } catch (Exception e) {
+            Log.error("arpt: exception occurred: " + e.getMessage());
+            module.rc = -1;
+        }
+        module.millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static @NonNull List<Module> read(@NonNull Path batchFile) throws IOException {
+        final Path dir = batchFile.toAbsolutePath().getParent();
+        final List<Module> modules = new ArrayList<>();
+        final List<String> lines = Files.readAllLines(batchFile, StandardCharsets.UTF_8);
+        for (int i = 0; i < lines.size(); i++) {
+            final String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            final String[] fields = line.split("\\s+");
+            if ((fields.length != 3 && fields.length != 4) || !fields[1].matches("\\w+")) {
+                throw new IllegalArgumentException("arpt: " + batchFile + ":" + (i + 1)
+                        + ": expected 'rule target dir [outdir]'");
+            }
+            modules.add(new Module(dir.resolve(fields[0]), fields[1], dir.resolve(fields[2]),
+                    fields.length == 4 ? dir.resolve(fields[3]) : null));
+        }
+        return modules;
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2022 Tony Guo. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jxtras.android.build.tools.arpt;
+
+import jxtras.android.build.tools.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Queue;
+
+/**
+ * A fast pre-filter that tells whether the raw bytes of a values file may
+ * declare any of the resources to be removed.
+ * <p>
+ * All candidate names are compiled into one Aho-Corasick automaton over the
+ * quoted attribute values {@code "name"} and {@code 'name'}, so a file is
+ * scanned exactly once no matter how many names there are. Files without a
+ * hit can't contain any resource to be removed and need not be parsed at all;
+ * a hit is only a hint, the parser still makes the final decision.
+ * <p>
+ * Names given by patterns are found by their literal prefix instead, which
+ * only needs to follow the opening quote. A pattern without a literal prefix
+ * may match anything, so the filter then lets every file through.
+ */
+public class CandidateFilter {
+
+    private static final int ROOT = 0;
+
+    /** Sorted child bytes and target states per state, the root is dense */
+    private byte[][] keys = new byte[16][];
+    private int[][] targets = new int[16][];
+    private final int[] rootTargets = new int[256];
+    private int[] fail = new int[16];
+    private boolean[] terminal = new boolean[16];
+    private int size = 1;
+    private boolean matchesAll;
+
+    private CandidateFilter() {
+        keys[ROOT] = new byte[0];
+        targets[ROOT] = new int[0];
+    }
+
+    /**
+     * Compiles a filter matching any of the given resource names.
+     */
+    public static @NonNull CandidateFilter compile(@NonNull Collection<String> names) {
+        return compile(names, Collections.<String>emptySet());
+    }
+
+    /**
+     * Compiles a filter matching any of the given resource names as well as
+     * any name starting with one of the given prefixes.
+     */
+    public static @NonNull CandidateFilter compile(@NonNull Collection<String> names,
+                                                   @NonNull Collection<String> prefixes) {
+        final CandidateFilter filter = new CandidateFilter();
+        for (String name : names) {
+            filter.add('"' + name + '"');
+            filter.add('\'' + name + '\'');
+        }
+        for (String prefix : prefixes) {
+            if (prefix.isEmpty()) {
+                filter.matchesAll = true;
+            }
+            filter.add('"' + prefix);
+            filter.add('\'' + prefix);
+        }
+        filter.link();
+        return filter;
+    }
+
+    /**
+     * Returns whether any of the names occurs in the given buffer, which is
+     * scanned from its start to its limit.
+     */
+    public boolean matches(@NonNull ByteBuffer buffer) {
+        if (matchesAll) {
+            return true;
+        }
+        int state = ROOT;
+        for (int i = 0, limit = buffer.limit(); i < limit; i++) {
+            state = next(state, buffer.get(i));
+            if (terminal[state]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int next(int state, byte b) {
+        while (state != ROOT) {
+            final int target = child(state, b);
+            if (target != ROOT) {
+                return target;
+            }
+            state = fail[state];
+        }
+        return rootTargets[b & 0xff];
+    }
+
+    private int child(int state, byte b) {
+        if (state == ROOT) {
+            return rootTargets[b & 0xff];
+        }
+        final int index = Arrays.binarySearch(keys[state], b);
+        return index >= 0 ? targets[state][index] : ROOT;
+    }
+
+    private void add(String pattern) {
+        int state = ROOT;
+        for (byte b : pattern.getBytes(StandardCharsets.UTF_8)) {
+            int target = child(state, b);
+            if (target == ROOT) {
+                target = newState();
+                if (state == ROOT) {
+                    rootTargets[b & 0xff] = target;
+                } else {
+                    insert(state, b, target);
+                }
+            }
+            state = target;
+        }
+        terminal[state] = true;
+    }
+
+    private int newState() {
+        if (size == keys.length) {
+            final int capacity = size * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            targets = Arrays.copyOf(targets, capacity);
+            fail = Arrays.copyOf(fail, capacity);
+            terminal = Arrays.copyOf(terminal, capacity);
+        }
+        keys[size] = new byte[0];
+        targets[size] = new int[0];
+        return size++;
+    }
+
+    private void insert(int state, byte b, int target) {
+        final byte[] oldKeys = keys[state];
+        final int[] oldTargets = targets[state];
+        final int index = -(Arrays.binarySearch(oldKeys, b) + 1);
+        final byte[] newKeys = new byte[oldKeys.length + 1];
+        final int[] newTargets = new int[oldTargets.length + 1];
+        System.arraycopy(oldKeys, 0, newKeys, 0, index);
+        System.arraycopy(oldTargets, 0, newTargets, 0, index);
+        newKeys[index] = b;
+        newTargets[index] = target;
+        System.arraycopy(oldKeys, index, newKeys, index + 1, oldKeys.length - index);
+        System.arraycopy(oldTargets, index, newTargets, index + 1, oldTargets.length - index);
+        keys[state] = newKeys;
+        targets[state] = newTargets;
+    }
+
+    /**
+     * Computes the failure links breadth first.
+     */
+    private void link() {
+        final Queue<Integer> queue = new ArrayDeque<>();
+        for (int target : rootTargets) {
+            if (target != ROOT) {
+                fail[target] = ROOT;
+                queue.add(target);
+            }
+        }
+        while (!queue.isEmpty()) {
+            final int state = queue.remove();
+            final byte[] stateKeys = keys[state];
+            final int[] stateTargets = targets[state];
+            for (int i = 0; i < stateKeys.length; i++) {
+                final int target = stateTargets[i];
+                fail[target] = next(fail[state], stateKeys[i]);
+                terminal[target] |= terminal[fail[target]];
+                queue.add(target);
+            }
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2022 Tony Guo. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jxtras.android.build.tools.arpt;
+
+import jxtras.android.build.tools.annotation.NonNull;
+import jxtras.android.build.tools.annotation.Nullable;
+import jxtras.android.build.tools.util.Log;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which configuration qualified resources a target product keeps,
+ * given the locales and densities it ships, much like the {@code -c} and
+ * {@code --preferred-density} options of aapt.
+ * <p>
+ * A directory is kept unless its locale is not among the shipped ones:
+ * directories without a locale are always kept. A shipped locale without a
+ * region (e.g. {@code en}) keeps all regions of that language, while one with
+ * a region (e.g. {@code zh-rCN}) only keeps that region and the language
+ * without region it falls back to (e.g. {@code zh}).
+ * <p>
+ * Densities are decided per resource instead, since dropping a density
+ * directory as a whole may drop the only variant of a resource: a variant in
+ * a directory of a density which isn't shipped is only dropped if the
+ * resource is kept in a directory with the same other qualifiers and either
+ * a shipped density, {@code nodpi}, {@code anydpi} or no density at all, see
+ * {@link #findDroppedVariants(List)}. Otherwise the variants closest to the
+ * shipped densities are kept. If no locale (or no density) is shipped at all,
+ * locales (or densities) are not restricted.
+ */
+public class ConfigFilter {
+
+    private static final Pattern MCC_MNC = Pattern.compile("mcc\\d+|mnc\\d+");
+    private static final Pattern LANGUAGE = Pattern.compile("[a-z]{2,3}");
+    private static final Pattern REGION = Pattern.compile("r[A-Z]{2}|r\\d{3}");
+    private static final Pattern DENSITY = Pattern.compile("ldpi|mdpi|tvdpi|hdpi|xhdpi|xxhdpi|xxxhdpi|\\d+dpi");
+    private static final Set<String> ANY_DENSITY = new HashSet<>(Arrays.asList("nodpi", "anydpi"));
+    private static final Map<String, Integer> DPI = new HashMap<>();
+    static {
+        DPI.put("ldpi", 120);
+        DPI.put("mdpi", 160);
+        DPI.put("tvdpi", 213);
+        DPI.put("hdpi", 240);
+        DPI.put("xhdpi", 320);
+        DPI.put("xxhdpi", 480);
+        DPI.put("xxxhdpi", 640);
+    }
+    /** Qualifiers which look like a language but aren't */
+    private static final Set<String> NOT_LANGUAGE = new HashSet<>(Arrays.asList("car", "tv", "hdr"));
+
+    private final Set<String> languages = new HashSet<>();
+    private final Set<String> locales = new HashSet<>();
+    /** Languages of the shipped locales with a region */
+    private final Set<String> regionLanguages = new HashSet<>();
+    private final Set<String> densities = new HashSet<>();
+
+    private ConfigFilter() {
+    }
+
+    /**
+     * Compiles a filter keeping the given configurations, e.g. {@code en},
+     * {@code zh-rCN} or {@code xxhdpi}.
+     */
+    public static @NonNull ConfigFilter compile(@NonNull Collection<String> configs) {
+        final ConfigFilter filter = new ConfigFilter();
+        for (String config : configs) {
+            if (DENSITY.matcher(config).matches() || ANY_DENSITY.contains(config)) {
+                filter.densities.add(config);
+                continue;
+            }
+            final String[] locale = parseLocale(Arrays.asList(config.split("-")), 0);
+            if (locale != null && locale[1].length() == config.length()) {
+                if (locale[0].equals(config)) {
+                    filter.languages.add(config);
+                } else {
+                    filter.locales.add(config);
+                    filter.regionLanguages.add(locale[0]);
+                }
+            } else {
+                Log.warn("arpt: config '" + config + "' not supported, ignored");
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * Returns whether the resource directory of the given name is kept, e.g.
+     * {@code values-fr} or {@code drawable-night-fr}. Directories of a density
+     * which isn't shipped are kept as well, see {@link
+     * #findDroppedVariants(List)} for which of their files are dropped.
+     */
+    public boolean accepts(@NonNull String dirName) {
+        final List<String> qualifiers = Arrays.asList(dirName.split("-"));
+        int index = 1;
+        while (index < qualifiers.size() && MCC_MNC.matcher(qualifiers.get(index)).matches()) {
+            index++;
+        }
+        final String[] locale = parseLocale(qualifiers, index);
+        if (locale != null && !(languages.isEmpty() && locales.isEmpty()) && !languages.contains(locale[0])
+                && !locales.contains(locale[1])
+                && !(locale[0].equals(locale[1]) && regionLanguages.contains(locale[0]))) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Finds the files of the given resource dirs, which are merged like
+     * overlays, in directories of a density which isn't shipped and which
+     * aren't needed: every resource they declare is kept in a directory with
+     * the same other qualifiers and a shipped density (or none), or in a
+     * variant closer to a shipped density. Values files which can't be
+     * tokenized are always kept.
+     *
+     * @return the dropped files, sorted by path.
+     */
+    public @NonNull Set<Path> findDroppedVariants(@NonNull List<ResourceIndex> resources) {
+        final Set<Path> dropped = new TreeSet<>(ResourceIndex::compareNames);
+        if (densities.isEmpty()) {
+            return dropped;
+        }
+        // the dirs of each combination of other qualifiers, e.g. drawable-night for drawable-night-hdpi
+        final Map<String, Set<String>> groups = new HashMap<>();
+        for (ResourceIndex resource : resources) {
+            for (String dirName : resource.getDirNames()) {
+                if (accepts(dirName)) {
+                    groups.computeIfAbsent(withoutDensity(dirName), group -> new TreeSet<>()).add(dirName);
+                }
+            }
+        }
+
+        final Set<String> kept = new HashSet<>();
+        // the variants of each resource not kept yet, by their density
+        final Map<String, Map<Integer, List<Path>>> variants = new TreeMap<>();
+        final Map<Path, Set<String>> keys = new HashMap<>();
+        for (Map.Entry<String, Set<String>> group : groups.entrySet()) {
+            if (group.getValue().stream().allMatch(this::hasShippedDensity)) {
+                continue;
+            }
+            for (ResourceIndex resource : resources) {
+                for (String dirName : group.getValue()) {
+                    final boolean shipped = hasShippedDensity(dirName);
+                    for (Path file : resource.getFiles(dirName)) {
+                        final Set<String> fileKeys = getKeys(resource, dirName, file);
+                        if (shipped) {
+                            if (fileKeys != null) {
+                                for (String key : fileKeys) {
+                                    kept.add(group.getKey() + "/" + key);
+                                }
+                            }
+                        } else if (fileKeys != null) {
+                            keys.put(file, fileKeys);
+                            for (String key : fileKeys) {
+                                variants.computeIfAbsent(group.getKey() + "/" + key, k -> new TreeMap<>())
+                                        .computeIfAbsent(getDpi(dirName), dpi -> new ArrayList<>()).add(file);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        final Set<Path> needed = new HashSet<>();
+        for (Map.Entry<String, Map<Integer, List<Path>>> entry : variants.entrySet()) {
+            if (!kept.contains(entry.getKey())) {
+                for (int dpi : getClosestDpis(entry.getValue().keySet())) {
+                    needed.addAll(entry.getValue().get(dpi));
+                }
+            }
+        }
+        for (Path file : keys.keySet()) {
+            if (!needed.contains(file)) {
+                dropped.add(file);
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Get the keys of the resources of the given file, i.e. the value
+     * resources of a values file (see {@link Deduper#getKey(String, String,
+     * String)}) and the file resource of any other file, e.g.
+     * {@code drawable/icon}, or null if the values file can't be tokenized.
+     */
+    private static @Nullable Set<String> getKeys(@NonNull ResourceIndex resources, @NonNull String dirName,
+                                                 @NonNull Path file) {
+        if (!resources.isValuesFile(file)) {
+            return Collections.singleton(getType(dirName) + "/" + ResourceIndex.getBaseName(file));
+        }
+        final Map<String, String> hashes = resources.getValueHashes(file);
+        return hashes != null ? hashes.keySet() : null;
+    }
+
+    /**
+     * Get the densities of the given ones closest to the shipped densities,
+     * preferring to scale down, i.e. the lowest density not lower than a
+     * shipped one, else the highest. If only {@code nodpi} or {@code anydpi}
+     * is shipped, the highest density.
+     */
+    private @NonNull Set<Integer> getClosestDpis(@NonNull Set<Integer> available) {
+        final TreeSet<Integer> dpis = new TreeSet<>(available);
+        final Set<Integer> result = new HashSet<>();
+        for (String density : densities) {
+            final int shipped = getDpi(density);
+            final Integer closest = shipped > 0 ? dpis.ceiling(shipped) : null;
+            result.add(closest != null ? closest : dpis.last());
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether the resource directory of the given name is of a
+     * shipped density, of {@code nodpi} or {@code anydpi}, or of no density.
+     */
+    private boolean hasShippedDensity(@NonNull String dirName) {
+        final String density = getDensity(dirName);
+        return density == null || densities.contains(density) || ANY_DENSITY.contains(density);
+    }
+
+    /**
+     * Get the density qualifier of the given resource directory, or null if
+     * it has none.
+     */
+    private static @Nullable String getDensity(@NonNull String dirName) {
+        final String[] qualifiers = dirName.split("-");
+        for (int i = 1; i < qualifiers.length; i++) {
+            if (DENSITY.matcher(qualifiers[i]).matches() || ANY_DENSITY.contains(qualifiers[i])) {
+                return qualifiers[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the dots per inch of the given density or the density of the given
+     * resource directory, e.g. 240 for {@code hdpi} and {@code drawable-hdpi},
+     * or 0 if it has none.
+     */
+    private static int getDpi(@NonNull String dirName) {
+        final String density = DENSITY.matcher(dirName).matches() ? dirName : getDensity(dirName);
+        if (density == null || ANY_DENSITY.contains(density)) {
+            return 0;
+        }
+        final Integer dpi = DPI.get(density);
+        return dpi != null ? dpi : Integer.parseInt(density.substring(0, density.length() - 3));
+    }
+
+    /**
+     * Get the name of the given resource directory without its density, e.g.
+     * {@code drawable-night} for {@code drawable-night-hdpi}.
+     */
+    private static @NonNull String withoutDensity(@NonNull String dirName) {
+        final StringBuilder result = new StringBuilder();
+        for (String qualifier : dirName.split("-")) {
+            if (result.length() == 0 || !(DENSITY.matcher(qualifier).matches() || ANY_DENSITY.contains(qualifier))) {
+                result.append(result.length() > 0 ? "-" : "").append(qualifier);
+            }
+        }
+        return result.toString();
+    }
+
+    private static @NonNull String getType(@NonNull String dirName) {
+        final int dash = dirName.indexOf('-');
+        return dash < 0 ? dirName : dirName.substring(0, dash);
+    }
+
+    /**
+     * Parses the locale starting at the given qualifier, either a language
+     * optionally followed by a region or a BCP 47 tag like {@code b+sr+Latn}.
+     *
+     * @return the language and the full locale, or null if there is none.
+     */
+    private static @Nullable String[] parseLocale(@NonNull List<String> qualifiers, int index) {
+        if (index >= qualifiers.size()) {
+            return null;
+        }
+        final String qualifier = qualifiers.get(index);
+        if (qualifier.startsWith("b+")) {
+            final String[] subtags = qualifier.split("\\+");
+            return subtags.length > 1 ? new String[] { subtags[1], qualifier } : null;
+        }
+        if (!LANGUAGE.matcher(qualifier).matches() || NOT_LANGUAGE.contains(qualifier)) {
+            return null;
+        }
+        if (index + 1 < qualifiers.size() && REGION.matcher(qualifiers.get(index + 1)).matches()) {
+            return new String[] { qualifier, qualifier + "-" + qualifiers.get(index + 1) };
+        }
+        return new String[] { qualifier, qualifier };
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2022 Tony Guo. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jxtras.android.build.tools.arpt;
+
+import jxtras.android.build.tools.annotation.NonNull;
+import jxtras.android.build.tools.annotation.Nullable;
+import jxtras.android.build.tools.arpt.options.Options;
+import jxtras.android.build.tools.util.FileUtils;
+import jxtras.android.build.tools.util.Hashing;
+import jxtras.android.build.tools.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * A long-lived arpt process serving pruning requests, so that clients don't
+ * pay for JVM startup, class loading and a cold JIT, and rule plans compiled
+ * for one request are reused by the next.
+ * <p>
+ * The daemon listens on a loopback socket and publishes its port together
+ * with a random token in the file {@value #STATE_FILE} of its state dir, which
+ * is only readable by its owner. The daemon greets each client it accepts,
+ * the client then sends the token, its working dir and its arguments, and the
+ * daemon streams back the log and finally the exit code.
+ * <p>
+ * Requests are served one at a time and the daemon shuts down after being
+ * idle for the given timeout. A request has to arrive within
+ * {@value #REQUEST_TIMEOUT_MILLIS}ms of the greeting, so a peer sending
+ * nothing can't hold up the daemon; likewise a client which isn't greeted in
+ * time, e.g. while the daemon serves another request, gives up before sending
+ * its request and prunes in process instead.
+ */
+public class Daemon {
+
+    private static final String STATE_FILE = "arpt.daemon";
+    private static final int MAGIC = 0x41525054; // "ARPT"
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final int GREETING_TIMEOUT_MILLIS = 5000;
+    private static final int REQUEST_TIMEOUT_MILLIS = 5000;
+
+    private static final int EXIT = 0;
+    private static final int OUT = 1;
+    private static final int ERR = 2;
+    private static final int READY = 3;
+
+    private Daemon() {
+    }
+
+    /**
+     * Serves requests until the daemon was idle for the given timeout.
+     */
+    public static int serve(@NonNull Main main, @NonNull Path stateDir, int idleTimeout,
+                            @NonNull PrintStream out, @NonNull PrintStream err) {
+        final Path stateFile = stateDir.resolve(STATE_FILE);
+        final byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        final String token = Hashing.toHex(random);
+
+        try (ServerSocket server = new ServerSocket()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            server.setSoTimeout((int) Math.min(Integer.MAX_VALUE, idleTimeout * 1000L));
+            writeState(stateFile, server.getLocalPort() + " " + token);
+            Log.info("arpt: daemon listening on port " + server.getLocalPort());
+            try {
+                while (true) {
+                    try (Socket socket = server.accept()) {
+                        handle(main, socket, token);
+                    } catch (SocketTimeoutException e) {
+                        Log.info("arpt: daemon idle for " + idleTimeout + "s, shutting down");
+                        return 0;
+                    } catch (IOException e) {
+                        Log.warn("arpt: daemon request failed: " + e.getMessage());
+                    } finally {
+                        Log.initializeLog(out, err);
+                    }
+                }
+            } finally {
+                removeState(stateFile, token);
+            }
+        } catch (IOException e) {
+            Log.error("arpt: failed to start daemon: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    private static void handle(@NonNull Main main, @NonNull Socket socket, @NonNull String token) throws IOException {
+        final DataOutputStream response = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        response.writeByte(READY);
+        response.flush();
+
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        final Path workingDir;
+        final String[] args;
+        socket.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+        try {
+            if (in.readInt() != MAGIC || !MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+                    in.readUTF().getBytes(StandardCharsets.UTF_8))) {
+                Log.warn("arpt: daemon rejected request with invalid token");
+                return;
+            }
+            workingDir = Paths.get(in.readUTF());
+            args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = in.readUTF();
+            }
+        } catch (SocketTimeoutException e) {
+            Log.warn("arpt: daemon rejected request not sent within " + REQUEST_TIMEOUT_MILLIS + "ms");
+            return;
+        }
+        socket.setSoTimeout(0);
+
+        final PrintStream out = new PrintStream(new FrameOutputStream(response, OUT), true, "UTF-8");
+        final PrintStream err = new PrintStream(new FrameOutputStream(response, ERR), true, "UTF-8");
+        Log.initializeLog(out, err);
+        int rc;
+        try {
+            final Options options = Options.parseArgs(workingDir, args);
+            Log.setLogLevel(options.getLogLevel());
+            rc = main.execute(options);
+        } catch (RuntimeException e) {
+            Log.error(e.getMessage());
+            rc = -1;
+        }
+        out.flush();
+        err.flush();
+        response.writeByte(EXIT);
+        response.writeInt(rc);
+        response.flush();
+    }
+
+    /**
+     * Forwards the arguments to the daemon of the given state dir and copies
+     * its log to the given streams.
+     *
+     * @return the exit code of the request, or null if no daemon is running.
+     */
+    public static @Nullable Integer connect(@NonNull Path stateDir, @NonNull String[] args,
+                                            @NonNull PrintStream out, @NonNull PrintStream err) {
+        final String[] state;
+        try {
+            state = new String(Files.readAllBytes(stateDir.resolve(STATE_FILE)), StandardCharsets.UTF_8).split(" ");
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            Log.debug("arpt: failed to read daemon state: " + e.getMessage());
+            return null;
+        }
+        if (state.length != 2) {
+            return null;
+        }
+
+        final Socket socket = new Socket();
+        final DataInputStream in;
+        try {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(state[0])),
+                    CONNECT_TIMEOUT_MILLIS);
+            // nothing is sent until greeted, so a daemon which is busy or wedged never sees the request
+            socket.setSoTimeout(GREETING_TIMEOUT_MILLIS);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            if (in.readUnsignedByte() != READY) {
+                throw new IOException("unexpected greeting");
+            }
+            socket.setSoTimeout(0);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.debug("arpt: failed to connect to daemon: " + e.getMessage());
+            closeQuietly(socket);
+            return null;
+        }
+
+        try {
+            final DataOutputStream request = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            request.writeInt(MAGIC);
+            request.writeUTF(state[1]);
+            request.writeUTF(Paths.get("").toAbsolutePath().toString());
+            request.writeInt(args.length);
+            for (String arg : args) {
+                request.writeUTF(arg);
+            }
+            request.flush();
+
+            while (true) {
+                final int channel = in.readUnsignedByte();
+                if (channel == EXIT) {
+                    return in.readInt();
+                }
+                final byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                (channel == ERR ? err : out).write(bytes);
+            }
+        } catch (IOException e) {
+            Log.error("arpt: lost connection to daemon: " + e.getMessage());
+            return -1;
+        } finally {
+            out.flush();
+            err.flush();
+            closeQuietly(socket);
+        }
+    }
+
+    private static void writeState(@NonNull Path stateFile, @NonNull String state) throws IOException {
+        final Path dir = stateFile.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        final Path temp = Files.createTempFile(dir, "." + stateFile.getFileName(), ".tmp");
+        try {
+            try {
+                Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                // not a POSIX file system
+            }
+            Files.write(temp, state.getBytes(StandardCharsets.UTF_8));
+            FileUtils.move(temp, stateFile);
+        } finally {
+            FileUtils.deleteQuietly(temp);
+        }
+    }
+
+    /**
+     * Removes the state file unless it was taken over by another daemon.
+     */
+    private static void removeState(@NonNull Path stateFile, @NonNull String token) {
+        try {
+            final String state = new String(Files.readAllBytes(stateFile), StandardCharsets.UTF_8);
+            if (state.endsWith(" " + token)) {
+                Files.delete(stateFile);
+            }
+        } catch (IOException e) {
+            // already gone
+        }
+    }
+
+    private static void closeQuietly(@NonNull Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignored
+        }
+    }
+
+    /**
+     * Writes everything as frames of the given channel.
+     */
+    private static final class FrameOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final int channel;
+
+        FrameOutputStream(@NonNull DataOutputStream out, int channel) {
+            this.out = out;
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            synchronized (out) {
+                out.writeByte(channel);
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (out) {
+                out.flush();
+            }
+        }
+    }
+}
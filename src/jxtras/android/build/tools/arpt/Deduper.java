@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2022 Tony Guo. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jxtras.android.build.tools.arpt;
+
+import jxtras.android.build.tools.annotation.NonNull;
+import jxtras.android.build.tools.annotation.Nullable;
+import jxtras.android.build.tools.util.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the resources of a target product which are redundant since they're
+ * identical to the resources they fall back to:
+ * <ul>
+ * <li>value resources of a locale dir like {@code values-fr-rCA} equal to
+ * the ones of {@code values-fr}, or of {@code values} if that doesn't declare
+ * them, e.g. strings copied untranslated.</li>
+ * <li>files of a qualified dir like {@code layout-land} byte-identical to the
+ * file of the same name in the dir without qualifiers.</li>
+ * </ul>
+ * Both are compared by hashes, see {@link ResourceIndex#getValueHashes(Path)}
+ * and {@link ResourceIndex#getContentHash(Path)}, and files are only hashed if
+ * their sizes from the walk are equal.
+ * <p>
+ * Removing a resource must not let a dir other than its fallback win for any
+ * configuration, so a value is only removed if every other dir of the same
+ * language declares it with the same content, e.g. {@code values-fr-night}
+ * which would win over {@code values-fr} at night, and if it falls back to
+ * {@code values}, every dir without a locale as well, e.g.
+ * {@code values-night}. Likewise files are only removed if all variants are
+ * identical, and never if any of them is in a dir with a density, since
+ * bitmaps are scaled by the density of their dir.
+ */
+public class Deduper {
+    private static final Pattern MCC_MNC = Pattern.compile("(mcc|mnc)[0-9]+");
+    private static final Pattern LANGUAGE = Pattern.compile("[a-z]{2,3}");
+    private static final Pattern REGION = Pattern.compile("r([A-Z]{2}|[0-9]{3})");
+    private static final Pattern DENSITY = Pattern.compile("(l|m|tv|h|xh|xxh|xxxh|no|any|[0-9]+)dpi");
+
+    /**
+     * The value resources declared by the files of a values dir.
+     */
+    private static final class ValuesDir {
+        final String name;
+        /** The language of the dir, or "" if it has none */
+        final String language;
+        /** Whether the dir has no qualifiers other than a language and a region */
+        final boolean localeOnly;
+        /** The hash of each value resource, empty if declared more than once */
+        final Map<String, String> hashes = new HashMap<>();
+        final Map<String, Path> files = new HashMap<>();
+        /** Whether any file of the dir can't be tokenized */
+        boolean unknown;
+
+        ValuesDir(@NonNull String name) {
+            final String[] qualifiers = name.split("-");
+            int i = 1;
+            while (i < qualifiers.length && MCC_MNC.matcher(qualifiers[i]).matches()) {
+                i++;
+            }
+            final int first = i;
+            String language = "";
+            if (i < qualifiers.length) {
+                if (LANGUAGE.matcher(qualifiers[i]).matches() && !qualifiers[i].equals("car")) {
+                    language = qualifiers[i++];
+                    if (i < qualifiers.length && REGION.matcher(qualifiers[i]).matches()) {
+                        i++;
+                    }
+                } else if (qualifiers[i].startsWith("b+")) {
+                    language = qualifiers[i++].substring(2).split("\\+")[0].toLowerCase(Locale.ROOT);
+                }
+            }
+            this.name = name;
+            this.language = language;
+            this.localeOnly = first == 1 && !language.isEmpty() && i == qualifiers.length
+                    && !qualifiers[1].startsWith("b+");
+        }
+
+        void add(@NonNull ResourceIndex resources, @NonNull Path file) {
+            final Map<String, String> fileHashes = resources.getValueHashes(file);
+            if (fileHashes == null) {
+                unknown = true;
+                return;
+            }
+            for (Map.Entry<String, String> entry : fileHashes.entrySet()) {
+                if (hashes.putIfAbsent(entry.getKey(), entry.getValue()) != null) {
+                    hashes.put(entry.getKey(), "");
+                }
+                files.putIfAbsent(entry.getKey(), file);
+            }
+        }
+    }
+
+    private final Map<Path, Set<String>> values = new HashMap<>();
+    private final Set<Path> files = new TreeSet<>(ResourceIndex::compareNames);
+
+    private Deduper() {
+    }
+
+    /**
+     * Finds the redundant resources of the given resource dirs, which are
+     * merged like overlays.
+     *
+     * @param keeps whether a dir is kept for the target product, dirs which
+     *              aren't are neither deduped nor fallen back to.
+     */
+    public static @NonNull Deduper build(@NonNull List<ResourceIndex> resources, @NonNull Predicate<String> keeps) {
+        final Deduper deduper = new Deduper();
+        deduper.findRedundantValues(resources, keeps);
+        deduper.findRedundantFiles(resources, keeps);
+        return deduper;
+    }
+
+    /**
+     * Get the key value resources are compared by, which is their resource
+     * type and name, e.g. {@code string/app_name} for both
+     * {@code <string name="app_name">} and {@code <item type="string" name="app_name">}.
+     */
+    static @NonNull String getKey(@NonNull String tag, @Nullable String type, @NonNull String name) {
+        final Resolver resolver = Resolver.of(tag, type);
+        return (resolver != null ? resolver.getResourceType() : tag) + "/" + name;
+    }
+
+    /**
+     * Returns whether the given value resource of the given values file is
+     * redundant.
+     */
+    public boolean isRedundant(@NonNull Path valuesFile, @NonNull ValuesFile.Entry entry) {
+        return isRedundant(valuesFile, entry.getTag(), entry.getType(), entry.getName());
+    }
+
+    /**
+     * Returns whether the value resource of the given tag, type and name of
+     * the given values file is redundant, e.g. of an element parsed into a
+     * DOM.
+     */
+    public boolean isRedundant(@NonNull Path valuesFile, @NonNull String tag, @Nullable String type,
+                               @NonNull String name) {
+        final Set<String> keys = values.get(valuesFile);
+        return keys != null && keys.contains(getKey(tag, type, name));
+    }
+
+    /**
+     * Returns whether any value resource is redundant.
+     */
+    public boolean hasRedundantValues() {
+        return !values.isEmpty();
+    }
+
+    /**
+     * Returns whether any value resource of the given values file is
+     * redundant.
+     */
+    public boolean hasRedundantValues(@NonNull Path valuesFile) {
+        return values.containsKey(valuesFile);
+    }
+
+    /**
+     * Get a digest of the redundant value resources of the given values file,
+     * or null if there are none.
+     */
+    public @Nullable String getDigest(@NonNull Path valuesFile) {
+        final Set<String> keys = values.get(valuesFile);
+        return keys != null ? Hashing.sha256(String.join("\n", keys).getBytes(StandardCharsets.UTF_8)) : null;
+    }
+
+    /**
+     * Get the redundant files, sorted by path.
+     */
+    public @NonNull Set<Path> getFiles() {
+        return Collections.unmodifiableSet(files);
+    }
+
+    private void findRedundantValues(@NonNull List<ResourceIndex> resources, @NonNull Predicate<String> keeps) {
+        final Map<String, ValuesDir> dirs = new TreeMap<>();
+        for (ResourceIndex resource : resources) {
+            for (String dirName : resource.getDirNames()) {
+                if (getType(dirName).equals("values") && keeps.test(dirName)) {
+                    dirs.computeIfAbsent(dirName, ValuesDir::new);
+                }
+            }
+        }
+        if (dirs.values().stream().noneMatch(dir -> dir.localeOnly)) {
+            return;
+        }
+        for (ResourceIndex resource : resources) {
+            for (ValuesDir dir : dirs.values()) {
+                for (Path file : resource.getFiles(dir.name)) {
+                    if (resource.isValuesFile(file)) {
+                        dir.add(resource, file);
+                    }
+                }
+            }
+        }
+
+        final ValuesDir base = dirs.get("values");
+        for (ValuesDir dir : dirs.values()) {
+            if (!dir.localeOnly || dir.unknown) {
+                continue;
+            }
+            final ValuesDir parent = dir.name.equals("values-" + dir.language)
+                    ? null : dirs.get("values-" + dir.language);
+            for (Map.Entry<String, String> entry : dir.hashes.entrySet()) {
+                final String key = entry.getKey();
+                final String hash = entry.getValue();
+                final ValuesDir fallback = parent != null && (parent.unknown || parent.hashes.containsKey(key))
+                        ? parent : base;
+                if (!hash.isEmpty() && fallback != null && !fallback.unknown
+                        && hash.equals(fallback.hashes.get(key))
+                        && isUnrivaled(dirs.values(), dir, key, hash, fallback == base)) {
+                    values.computeIfAbsent(dir.files.get(key), file -> new TreeSet<>()).add(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns whether all dirs which may be picked instead of the given one,
+     * once the given value resource is removed from it, declare it with the
+     * same hash if at all.
+     *
+     * @param toDefault whether the value falls back to {@code values}, so
+     *                  dirs without a locale may be picked as well.
+     */
+    private static boolean isUnrivaled(@NonNull Collection<ValuesDir> dirs, @NonNull ValuesDir dir,
+                                       @NonNull String key, @NonNull String hash, boolean toDefault) {
+        for (ValuesDir other : dirs) {
+            if (other == dir || !(other.language.equals(dir.language) || toDefault && other.language.isEmpty())) {
+                continue;
+            }
+            final String otherHash = other.hashes.get(key);
+            if (other.unknown || otherHash != null && !otherHash.equals(hash)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void findRedundantFiles(@NonNull List<ResourceIndex> resources, @NonNull Predicate<String> keeps) {
+        final Map<String, List<Path>> variants = new HashMap<>();
+        final Map<Path, ResourceIndex> owners = new HashMap<>();
+        for (ResourceIndex resource : resources) {
+            for (String dirName : resource.getDirNames()) {
+                final String type = getType(dirName);
+                if (type.equals("values") || !keeps.test(dirName)) {
+                    continue;
+                }
+                for (Path file : resource.getFiles(dirName)) {
+                    variants.computeIfAbsent(type + "/" + ResourceIndex.getBaseName(file),
+                            name -> new ArrayList<>()).add(file);
+                    owners.put(file, resource);
+                }
+            }
+        }
+
+        for (List<Path> variant : variants.values()) {
+            if (variant.size() < 2) {
+                continue;
+            }
+            Path base = null;
+            boolean redundant = true;
+            for (Path file : variant) {
+                final String dirName = file.getParent().getFileName().toString();
+                if (dirName.indexOf('-') < 0) {
+                    redundant &= base == null;
+                    base = file;
+                } else {
+                    redundant &= !hasDensity(dirName);
+                }
+            }
+            if (!redundant || base == null) {
+                continue;
+            }
+            final Manifest.Stamp stamp = owners.get(base).getStamp(base);
+            for (Path file : variant) {
+                final Manifest.Stamp other = owners.get(file).getStamp(file);
+                if (!file.getFileName().equals(base.getFileName())
+                        || stamp == null || other == null || stamp.getSize() != other.getSize()) {
+                    redundant = false;
+                    break;
+                }
+            }
+            final String hash = redundant ? owners.get(base).getContentHash(base) : null;
+            if (hash == null) {
+                continue;
+            }
+            for (Path file : variant) {
+                if (!hash.equals(owners.get(file).getContentHash(file))) {
+                    redundant = false;
+                    break;
+                }
+            }
+            if (redundant) {
+                for (Path file : variant) {
+                    if (file != base) {
+                        files.add(file);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the resource type of a dir, e.g. {@code drawable} for
+     * {@code drawable-night-v31}.
+     */
+    private static @NonNull String getType(@NonNull String dirName) {
+        final int dash = dirName.indexOf('-');
+        return dash < 0 ? dirName : dirName.substring(0, dash);
+    }
+
+    private static boolean hasDensity(@NonNull String dirName) {
+        for (String qualifier : dirName.split("-")) {
+            if (DENSITY.matcher(qualifier).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
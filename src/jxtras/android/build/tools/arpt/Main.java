@@ -20,13 +20,15 @@ import jxtras.android.build.tools.util.Log;
 import jxtras.android.build.tools.annotation.NonNull;
 
 import java.io.*;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.List;
-import java.util.Set;
 
 public class Main {
 
+    /** Number of log messages queued with -asynclog before logging threads have to wait */
+    private static final int ASYNC_LOG_CAPACITY = 8192;
+
+    private final ArptEngine engine = new ArptEngine();
+
     public static void main(String[] args) {
         Main main = new Main();
         int rc = main.go(args, System.out, System.err);
@@ -46,83 +48,150 @@ public class Main {
 
         Log.setLogLevel(options.getLogLevel());
 
-        if (!validateOptions(options)) {
-            return -1;
+        if (options.getDaemonDir() != null) {
+            return Daemon.serve(this, options.getDaemonDir(), options.getIdleTimeout(), out, err);
         }
 
-        try {
-            final File ruleFile = options.getRuleFile().toFile();
-            if (!ruleFile.exists() || !ruleFile.isFile()) {
-                Log.error("arpt: ruleFile does not exist");
-                return -1;
-            }
-
-            final String targetProduct = options.getTargetProduct();
-            if (targetProduct == null || targetProduct.isEmpty()) {
-                Log.error("arpt: target product not provided");
-                return -1;
-            }
-
-            final List<Rule> rules = Rule.parseRules(ruleFile);
-            if (rules.isEmpty()) {
-                Log.info("arpt: no rules provided for target '" + targetProduct + "'");
-                return 0;
+        if (options.getConnectDir() != null) {
+            final Integer rc = Daemon.connect(options.getConnectDir(), args, out, err);
+            if (rc != null) {
+                return rc;
             }
+            Log.debug("arpt: no daemon running in " + options.getConnectDir() + ", pruning in process");
+        }
 
-            final List<Path> resDirs = options.getResourceDirs();
-            if (resDirs == null || resDirs.isEmpty()) {
-                Log.info("arpt: resDirs is empty or not provided");
-                return 0;
-            }
+        return execute(options);
+    }
 
-            return prune(resDirs, targetProduct, rules);
-        } catch (Exception e) {
-            Log.error("arpt: exception occurred: " + e.getMessage());
+    /**
+     * Prunes resources as specified by the given options.
+     */
+    int execute(@NonNull Options options) {
+        if (!validateOptions(options)) {
             return -1;
         }
-    }
 
-    private static int prune(@NonNull List<Path> resDirs, @NonNull String targetProduct, @NonNull List<Rule> rules) {
-        for (Path resDir : resDirs) {
-            if (!Files.exists(resDir) || !Files.isDirectory(resDir)) {
-                Log.warn("arpt: resDir does not exist: " + resDir);
-                continue;
+        if (options.isAsyncLog()) {
+            Log.startAsync(ASYNC_LOG_CAPACITY);
+        }
+        try {
+            final Metrics metrics = new Metrics();
+            final int rc;
+            if (options.getBatchFile() != null) {
+                final OutputCache cache = options.getCacheDir() != null
+                        ? new OutputCache(options.getCacheDir(), options.getCacheSize() * 1024L * 1024L) : null;
+                rc = Batch.run(engine, options, metrics, cache);
+                if (cache != null) {
+                    cache.trim();
+                }
+            } else {
+                rc = engine.prune(toRequest(options, metrics)).getExitCode();
             }
-            rules.forEach(rule -> {
-                final String resourceType = rule.getResourceType();
-                final String availability = rule.getAvailability();
-                final Set<String> names = rule.getResourceNames();
-                if (!availability.isEmpty() && !targetProduct.matches(availability)) {
-                    Resolver resolver = Resolver.get(resourceType);
-                    if (resolver != null) {
-                        resolver.remove(resDir.toFile(), names);
-                    }
-                } else {
-                    Log.info("arpt: target '" + targetProduct
-                            + "' matches with regex '" + availability
-                            + "', skip removing the following resources:");
-                    for (String name : names) {
-                        Log.info("    @" + resourceType + "/" + name);
-                    }
+            metrics.log();
+            if (options.getMetricsFile() != null) {
+                try {
+                    metrics.writeTo(options.getMetricsFile());
+                } catch (IOException e) {
+                    Log.error("arpt: failed to write metrics: " + e.getMessage());
                 }
-            });
+            }
+            return rc;
+        } finally {
+            Log.close();
         }
-        return 0;
+    }
+
+    private static @NonNull ArptEngine.Request toRequest(@NonNull Options options, @NonNull Metrics metrics) {
+        final ArptEngine.Builder builder = ArptEngine.Request.builder()
+                .ruleFile(options.getRuleFile())
+                .inputDir(options.getInputDir())
+                .outputDir(options.getOutputDir())
+                .manifestFile(options.getManifestFile())
+                .planCacheDir(options.getPlanCacheDir())
+                .cacheDir(options.getCacheDir())
+                .cacheSize(options.getCacheSize() * 1024L * 1024L)
+                .parallelism(options.getParallelism())
+                .transitive(options.isTransitive())
+                .dedupe(options.isDedupe())
+                .ioThreads(options.getIoThreads())
+                .maxInFlight(options.getInFlight() * 1024L * 1024L)
+                .logLevel(Log.getLogLevel())
+                .metrics(metrics);
+        if (!options.getTargetProducts().isEmpty()) {
+            builder.targets(options.getTargetProducts());
+        } else {
+            builder.target(options.getTargetProduct());
+        }
+        for (Path resDir : options.getResourceDirs()) {
+            builder.resourceDir(resDir);
+        }
+        return builder.build();
     }
 
     private static final String HELP = "Usage example: arpt -target name -rule rule dir\n"+
+            "               arpt -target name -rule rule -in dir -out dir\n"+
+            "               arpt -targets name,name -rule rule -in dir -out dir\n"+
+            "               arpt -batch modules\n"+
             "required options are:\n"+
             "dir             Prune all resources recursively below the specified directory\n"+
             "-target name    Specify target product name\n"+
-            "-rule rule      Specify the rule for pruning\n";
+            "-rule rule      Specify the rule for pruning\n"+
+            "optional options are:\n"+
+            "-targets names  Prune for several target products in one go, separated by ,\n"+
+            "                the output of each is written to a sub dir of -out named after it\n"+
+            "-batch modules  Prune all modules listed in the specified file in one go, each line\n"+
+            "                lists the rule, target and resource dir of a module, optionally\n"+
+            "                followed by an output dir\n"+
+            "-in dir         Prune resources below the specified directory out of place, or in the\n"+
+            "                specified zip archive\n"+
+            "-out dir        Write the pruned resources of -in to the specified directory, or\n"+
+            "                zip archive (one per target named after it with -targets)\n"+
+            "-plancache dir  Cache compiled rule plans in the specified directory\n"+
+            "-cache dir      Cache pruned values files in the specified directory, which may be\n"+
+            "                shared by several products, modules and builds\n"+
+            "-cachesize megabytes\n"+
+            "                Trim the cache to the specified size, 1024 by default\n"+
+            "-incremental manifest\n"+
+            "                Skip files which are up-to-date according to the manifest\n"+
+            "-metrics file   Write counters and timings of the run to the specified file as JSON\n"+
+            "-transitive     Also remove resources only referenced by removed resources, note\n"+
+            "                that references from code can't be seen\n"+
+            "-dedupe         Also remove locale values and qualified files identical to the ones\n"+
+            "                they fall back to\n"+
+            "-j count        Prune with the specified number of threads\n"+
+            "-parallel       Prune with as many threads as available processors\n"+
+            "-io count       Read values files ahead of pruning and write them behind it with the\n"+
+            "                specified number of threads, e.g. for file systems with high latency\n"+
+            "-inflight megabytes\n"+
+            "                Limit the values files read but not yet written with -io, 64 by default\n"+
+            "-asynclog       Write the log on a separate thread, in batches\n"+
+            "-daemon dir     Run as daemon serving the clients connecting through the state dir\n"+
+            "-idle seconds   Shut down the daemon after being idle for the specified time\n"+
+            "-connect dir    Forward the request to the daemon of the state dir, if there is one\n";
 
     private static boolean validateOptions(Options options) {
         String err = null;
 
-        if (options.getRuleFile() == null) {
+        if (options.getBatchFile() != null) {
+            if (options.getRuleFile() != null || options.getTargetProduct() != null
+                    || !options.getTargetProducts().isEmpty() || options.getInputDir() != null
+                    || options.getOutputDir() != null || !options.getResourceDirs().isEmpty()) {
+                err = "arpt: -batch can't be combined with -rule, -target, -targets, -in, -out or resource dirs";
+            }
+        } else if (options.getRuleFile() == null) {
             err = HELP;
-        } else if (options.getTargetProduct() == null) {
+        } else if (options.getTargetProduct() == null && options.getTargetProducts().isEmpty()) {
             err = HELP;
+        } else if (options.getTargetProduct() != null && !options.getTargetProducts().isEmpty()) {
+            err = "arpt: -target and -targets can't be used together";
+        } else if (!options.getTargetProducts().isEmpty() && options.getInputDir() == null) {
+            err = "arpt: -targets requires -in and -out";
+        } else if (options.getInputDir() != null || options.getOutputDir() != null) {
+            if (options.getInputDir() == null || options.getOutputDir() == null) {
+                err = "arpt: -in and -out must be used together";
+            } else if (!options.getResourceDirs().isEmpty()) {
+                err = "arpt: -in can't be combined with resource dirs pruned in place";
+            }
         } else if (options.getResourceDirs().isEmpty()) {
             err = HELP;
         }
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2022 Tony Guo. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jxtras.android.build.tools.arpt;
+
+import jxtras.android.build.tools.annotation.NonNull;
+import jxtras.android.build.tools.annotation.Nullable;
+import jxtras.android.build.tools.util.FileUtils;
+import jxtras.android.build.tools.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records the state of every pruned file for incremental pruning.
+ * <p>
+ * For each output file the manifest keeps the size, modification time and
+ * content hash of its input and of the output arpt left behind, together with
+ * the digest of the {@link RemovalIndex} it was pruned with. An output which is
+ * still in place and whose input and removal index did not change is up to
+ * date and need not be pruned again. Outputs of several target products can
+ * be recorded in the same manifest.
+ */
+public class Manifest {
+
+    private static final String HEADER = "# arpt manifest v2";
+
+    private final Path file;
+    private final Map<String, Entry> previous;
+    private final Map<String, Entry> current = new ConcurrentHashMap<>();
+
+    private Manifest(@NonNull Path file, @NonNull Map<String, Entry> previous) {
+        this.file = file;
+        this.previous = previous;
+    }
+
+    /**
+     * The size and modification time of a file.
+     */
+    public static final class Stamp {
+        private final long size;
+        private final long lastModified;
+
+        public Stamp(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public static @NonNull Stamp of(@NonNull Path path) throws IOException {
+            final BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            return new Stamp(attrs.size(), attrs.lastModifiedTime().toMillis());
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Stamp)) {
+                return false;
+            }
+            final Stamp other = (Stamp) o;
+            return size == other.size && lastModified == other.lastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(size) * 31 + Long.hashCode(lastModified);
+        }
+    }
+
+    /**
+     * The recorded state of a single file.
+     */
+    public static final class Entry {
+        private final String planDigest;
+        private final String source;
+        private final Stamp input;
+        private final String inputHash;
+        private final Stamp output;
+        private final String outputHash;
+
+        public Entry(@NonNull String planDigest, @NonNull Path source,
+                     @NonNull Stamp input, @NonNull String inputHash,
+                     @NonNull Stamp output, @NonNull String outputHash) {
+            this(planDigest, key(source), input, inputHash, output, outputHash);
+        }
+
+        private Entry(@NonNull String planDigest, @NonNull String source,
+                      @NonNull Stamp input, @NonNull String inputHash,
+                      @NonNull Stamp output, @NonNull String outputHash) {
+            this.planDigest = planDigest;
+            this.source = source;
+            this.input = input;
+            this.inputHash = inputHash;
+            this.output = output;
+            this.outputHash = outputHash;
+        }
+
+        public @NonNull Stamp getInput() {
+            return input;
+        }
+
+        public @NonNull String getInputHash() {
+            return inputHash;
+        }
+
+        public @NonNull Stamp getOutput() {
+            return output;
+        }
+
+        public @NonNull String getOutputHash() {
+            return outputHash;
+        }
+
+        /**
+         * Returns a copy of this entry with the output stamp replaced.
+         */
+        public @NonNull Entry withOutput(@NonNull Stamp stamp) {
+            return new Entry(planDigest, source, input, inputHash, stamp, outputHash);
+        }
+
+        /**
+         * Returns a copy of this entry with the input stamp replaced.
+         */
+        public @NonNull Entry withInput(@NonNull Stamp stamp) {
+            return new Entry(planDigest, source, stamp, inputHash, output, outputHash);
+        }
+    }
+
+    /**
+     * Loads the manifest from the given file.
+     */
+    public static @NonNull Manifest load(@NonNull Path file) {
+        final Map<String, Entry> entries = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine())) {
+                Log.warn("arpt: ignoring manifest of unknown format: " + file);
+            } else {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final String[] fields = line.split("\t", 9);
+                    if (fields.length != 9) {
+                        Log.warn("arpt: ignoring malformed manifest: " + file);
+                        entries.clear();
+                        break;
+                    }
+                    entries.put(fields[8], new Entry(fields[0], fields[7],
+                            new Stamp(Long.parseLong(fields[1]), Long.parseLong(fields[2])), fields[3],
+                            new Stamp(Long.parseLong(fields[4]), Long.parseLong(fields[5])), fields[6]));
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // first run
+        } catch (IOException | NumberFormatException e) {
+            Log.warn("arpt: failed to read manifest: " + file + ": " + e.getMessage());
+            entries.clear();
+        }
+        return new Manifest(file, entries);
+    }
+
+    /**
+     * Get the entry recorded by the previous run for the given output, if it
+     * was pruned from the same source with the same removal index.
+     */
+    public @Nullable Entry get(@NonNull Path output, @NonNull String planDigest, @NonNull Path source) {
+        final Entry entry = previous.get(key(output));
+        if (entry == null || !entry.planDigest.equals(planDigest) || !entry.source.equals(key(source))) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Records the entry of the given output for the next run.
+     */
+    public void put(@NonNull Path output, @NonNull Entry entry) {
+        current.put(key(output), entry);
+    }
+
+    /**
+     * Saves all entries recorded by {@link #put(Path, Entry)}, outputs that
+     * were not recorded during this run are dropped from the manifest.
+     */
+    public void save() throws IOException {
+        final Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        final Path temp = Files.createTempFile(dir, "." + file.getFileName(), ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                writer.write(HEADER);
+                writer.newLine();
+                for (Map.Entry<String, Entry> e : new TreeMap<>(current).entrySet()) {
+                    final Entry entry = e.getValue();
+                    writer.write(entry.planDigest + "\t"
+                            + entry.input.size + "\t" + entry.input.lastModified + "\t" + entry.inputHash + "\t"
+                            + entry.output.size + "\t" + entry.output.lastModified + "\t" + entry.outputHash + "\t"
+                            + entry.source + "\t" + e.getKey());
+                    writer.newLine();
+                }
+            }
+            FileUtils.move(temp, file);
+        } finally {
+            FileUtils.deleteQuietly(temp);
+        }
+    }
+
+    private static String key(Path path) {
+        return path.toAbsolutePath().normalize().toString();
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2022 Tony Guo. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jxtras.android.build.tools.arpt;
+
+import jxtras.android.build.tools.annotation.NonNull;
+import jxtras.android.build.tools.util.FileUtils;
+import jxtras.android.build.tools.util.Log;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and timings of a single arpt run, which may prune several modules
+ * or target products.
+ * <p>
+ * Counters and phase timings are summed up across all threads, so the time of
+ * a phase is the time spent in it by all threads together rather than wall
+ * time. The time spent on each values file is kept as well, for latency
+ * percentiles. The metrics are logged at the {@code timing} level and can be
+ * exported as JSON.
+ */
+public class Metrics {
+
+    /**
+     * What is counted.
+     */
+    public enum Counter {
+        FILES_SCANNED("filesScanned"),
+        FILES_REWRITTEN("filesRewritten"),
+        FILES_LINKED("filesLinked"),
+        FILES_UP_TO_DATE("filesUpToDate"),
+        FILES_DELETED("filesDeleted"),
+        BYTES_READ("bytesRead"),
+        BYTES_WRITTEN("bytesWritten"),
+        ELEMENTS_REMOVED("elementsRemoved"),
+        CACHE_HITS("cacheHits"),
+        CACHE_MISSES("cacheMisses"),
+        ENTRIES_COPIED("entriesCopied"),
+        ELEMENTS_DEDUPED("elementsDeduped"),
+        FILES_DEDUPED("filesDeduped");
+
+        final String key;
+
+        Counter(String key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * The phases time is spent in.
+     */
+    public enum Phase {
+        RULES("rules", "rule parse"),
+        WALK("walk", "tree walk"),
+        REFERENCES("references", "reference scan"),
+        DEDUPE("dedupe", "dedupe scan"),
+        PARSE("parse", "file parse"),
+        TRANSFORM("transform", "file transform"),
+        WRITE("write", "file write"),
+        DELETE("delete", "deletion");
+
+        final String key;
+        final String description;
+
+        Phase(String key, String description) {
+            this.key = key;
+            this.description = description;
+        }
+    }
+
+    private final long start = System.nanoTime();
+    private final LongAdder[] counters = new LongAdder[Counter.values().length];
+    private final LongAdder[] phaseNanos = new LongAdder[Phase.values().length];
+    private final LongAdder[] phaseCounts = new LongAdder[Phase.values().length];
+    private long[] latencies = new long[256];
+    private int latencyCount;
+
+    public Metrics() {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        for (int i = 0; i < phaseNanos.length; i++) {
+            phaseNanos[i] = new LongAdder();
+            phaseCounts[i] = new LongAdder();
+        }
+    }
+
+    public void add(@NonNull Counter counter, long value) {
+        counters[counter.ordinal()].add(value);
+    }
+
+    public void increment(@NonNull Counter counter) {
+        counters[counter.ordinal()].increment();
+    }
+
+    public long get(@NonNull Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    /**
+     * Records the time spent in the given phase since the given start, as
+     * returned by {@link System#nanoTime()}.
+     *
+     * @return the current time, to be used as start of the next phase.
+     */
+    public long record(@NonNull Phase phase, long start) {
+        final long now = System.nanoTime();
+        phaseNanos[phase.ordinal()].add(now - start);
+        phaseCounts[phase.ordinal()].increment();
+        return now;
+    }
+
+    /**
+     * Get the time spent in the given phase so far, in nanoseconds.
+     */
+    public long getNanos(@NonNull Phase phase) {
+        return phaseNanos[phase.ordinal()].sum();
+    }
+
+    /**
+     * Records the time spent on a single file since the given start.
+     */
+    public void recordFile(long start) {
+        final long nanos = System.nanoTime() - start;
+        synchronized (this) {
+            if (latencyCount == latencies.length) {
+                latencies = Arrays.copyOf(latencies, latencyCount * 2);
+            }
+            latencies[latencyCount++] = nanos;
+        }
+    }
+
+    private synchronized long[] getSortedLatencies() {
+        final long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int index = (int) Math.ceil(p / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * Logs all metrics at the {@code timing} level.
+     */
+    public void log() {
+        Log.timing("arpt: timing: total " + toMillis(System.nanoTime() - start) + "ms");
+        for (Phase phase : Phase.values()) {
+            final long count = phaseCounts[phase.ordinal()].sum();
+            if (count > 0) {
+                Log.timing("arpt: timing: " + phase.description + " " + toMillis(getNanos(phase)) + "ms ("
+                        + count + "x)");
+            }
+        }
+        final long[] sorted = getSortedLatencies();
+        if (sorted.length > 0) {
+            Log.timing("arpt: timing: per file p50 " + toMillis(percentile(sorted, 50)) + "ms, p90 "
+                    + toMillis(percentile(sorted, 90)) + "ms, p99 " + toMillis(percentile(sorted, 99)) + "ms, max "
+                    + toMillis(sorted[sorted.length - 1]) + "ms");
+        }
+        final StringBuilder counts = new StringBuilder("arpt: timing: counters");
+        for (Counter counter : Counter.values()) {
+            counts.append(' ').append(counter.key).append('=').append(get(counter));
+        }
+        Log.timing(counts.toString());
+    }
+
+    /**
+     * Get all metrics as a JSON object.
+     */
+    public @NonNull String toJson() {
+        final StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"version\": 1,\n");
+        json.append("  \"wallTimeMs\": ").append(toMillis(System.nanoTime() - start)).append(",\n");
+        json.append("  \"counters\": {");
+        final Counter[] counterValues = Counter.values();
+        for (int i = 0; i < counterValues.length; i++) {
+            json.append(i > 0 ? ",\n" : "\n").append("    \"").append(counterValues[i].key).append("\": ")
+                    .append(get(counterValues[i]));
+        }
+        json.append("\n  },\n");
+        json.append("  \"phases\": {");
+        final Phase[] phaseValues = Phase.values();
+        for (int i = 0; i < phaseValues.length; i++) {
+            final Phase phase = phaseValues[i];
+            json.append(i > 0 ? ",\n" : "\n").append("    \"").append(phase.key).append("\": { \"count\": ")
+                    .append(phaseCounts[phase.ordinal()].sum()).append(", \"totalMs\": ")
+                    .append(toMillis(getNanos(phase))).append(" }");
+        }
+        json.append("\n  },\n");
+        final long[] sorted = getSortedLatencies();
+        json.append("  \"fileLatencyMs\": { \"count\": ").append(sorted.length)
+                .append(", \"p50\": ").append(toMillis(percentile(sorted, 50)))
+                .append(", \"p90\": ").append(toMillis(percentile(sorted, 90)))
+                .append(", \"p99\": ").append(toMillis(percentile(sorted, 99)))
+                .append(", \"max\": ").append(toMillis(sorted.length > 0 ? sorted[sorted.length - 1] : 0))
+                .append(" }\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    /**
+     * Writes {@link #toJson()} to the given file, which is replaced atomically.
+     */
+    public void writeTo(@NonNull Path file) throws IOException {
+        final Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        final Path temp = Files.createTempFile(dir, "." + file.getFileName(), ".tmp");
+        try {
+            Files.write(temp, toJson().getBytes(StandardCharsets.UTF_8));
+            FileUtils.move(temp, file);
+        } finally {
+            FileUtils.deleteQuietly(temp);
+        }
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+}
@@ -0,0 +1,541 @@
+/*
+ * Copyright (C) 2022 Tony Guo. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jxtras.android.build.tools.arpt;
+
+import jxtras.android.build.tools.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Matches resource names against any number of name patterns at once.
+ * <p>
+ * Patterns are regular expressions made of literals, {@code .}, character
+ * classes like {@code [a-z_]} or {@code \d}, groups, alternatives and the
+ * quantifiers {@code *}, {@code +} and {@code ?}; globs like
+ * {@code camera_strings_*} are translated into such patterns by
+ * {@link #globToRegex(String)}. All patterns are compiled into a single
+ * deterministic automaton, so a name is matched by looking at each of its
+ * characters exactly once, without backtracking, no matter how many patterns
+ * there are. A pattern has to match the whole name.
+ */
+public class NameMatcher {
+
+    /** Names are ASCII, all other characters share a single symbol */
+    private static final int OTHER = 128;
+    private static final int SYMBOLS = OTHER + 1;
+    private static final int MAX_STATES = 1 << 16;
+
+    private static final int DEAD = 0;
+    private static final int START = 1;
+
+    /** The character class of each symbol */
+    private final int[] classes;
+    private final int classCount;
+    /** The next state of each state and character class */
+    private final int[] transitions;
+    private final boolean[] accepting;
+
+    private NameMatcher(int[] classes, int classCount, int[] transitions, boolean[] accepting) {
+        this.classes = classes;
+        this.classCount = classCount;
+        this.transitions = transitions;
+        this.accepting = accepting;
+    }
+
+    /**
+     * Compiles a matcher matching any of the given patterns.
+     *
+     * @throws IllegalArgumentException if a pattern is not supported.
+     */
+    public static @NonNull NameMatcher compile(@NonNull Collection<String> patterns) {
+        final State start = new State(null);
+        final State accept = new State(null);
+        final List<BitSet> sets = new ArrayList<>();
+        for (String pattern : patterns) {
+            final Fragment fragment = new Parser(pattern, sets).parse();
+            start.epsilons.add(fragment.start);
+            fragment.end.epsilons.add(accept);
+        }
+        return determinize(start, accept, sets);
+    }
+
+    /**
+     * Returns whether the given name is matched by any of the patterns.
+     */
+    public boolean matches(@NonNull CharSequence name) {
+        int state = START;
+        for (int i = 0, length = name.length(); i < length; i++) {
+            final char c = name.charAt(i);
+            state = transitions[state * classCount + classes[c < OTHER ? c : OTHER]];
+            if (state == DEAD) {
+                return false;
+            }
+        }
+        return accepting[state];
+    }
+
+    /**
+     * Translates a glob into a pattern, where {@code *} matches any number of
+     * characters and {@code ?} matches a single character.
+     */
+    public static @NonNull String globToRegex(@NonNull String glob) {
+        final StringBuilder regex = new StringBuilder(glob.length() + 8);
+        for (int i = 0; i < glob.length(); i++) {
+            final char c = glob.charAt(i);
+            if (c == '*') {
+                regex.append(".*");
+            } else if (c == '?') {
+                regex.append('.');
+            } else if (Character.isLetterOrDigit(c) || c == '_') {
+                regex.append(c);
+            } else {
+                regex.append('\\').append(c);
+            }
+        }
+        return regex.toString();
+    }
+
+    /**
+     * Returns whether the given item of a rule is a glob rather than a name.
+     */
+    public static boolean isGlob(@NonNull String item) {
+        return item.indexOf('*') >= 0 || item.indexOf('?') >= 0;
+    }
+
+    /**
+     * Get the literal prefix every name matched by the given pattern starts
+     * with, which is empty if there is none.
+     */
+    public static @NonNull String getLiteralPrefix(@NonNull String pattern) {
+        final StringBuilder prefix = new StringBuilder();
+        int depth = 0;
+        boolean inClass = false;
+        boolean literal = true;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\' && i + 1 < pattern.length()) {
+                c = pattern.charAt(++i);
+                if (literal && !Character.isLetterOrDigit(c)) {
+                    prefix.append(c);
+                    continue;
+                }
+                literal = false;
+            } else if (inClass) {
+                inClass = c != ']';
+            } else if (c == '[') {
+                inClass = true;
+                literal = false;
+            } else if (c == '(') {
+                depth++;
+                literal = false;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '|' && depth == 0) {
+                return "";
+            } else if (c == '*' || c == '?') {
+                if (literal && prefix.length() > 0) {
+                    prefix.setLength(prefix.length() - 1);
+                }
+                literal = false;
+            } else if (c == '^' && i == 0) {
+                continue;
+            } else if (literal && c != '.' && c != '+' && c != '$') {
+                prefix.append(c);
+            } else {
+                literal = false;
+            }
+        }
+        return prefix.toString();
+    }
+
+    /**
+     * A state of the non-deterministic automaton, either consuming one of a
+     * set of symbols or none.
+     */
+    private static final class State {
+        final BitSet symbols;
+        State next;
+        final List<State> epsilons = new ArrayList<>(2);
+
+        State(BitSet symbols) {
+            this.symbols = symbols;
+        }
+    }
+
+    /**
+     * A part of the non-deterministic automaton with a single entry and exit.
+     */
+    private static final class Fragment {
+        final State start;
+        final State end;
+
+        Fragment(State start, State end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Parses a pattern into a fragment by recursive descent.
+     */
+    private static final class Parser {
+        private final String pattern;
+        private final List<BitSet> sets;
+        private int position;
+
+        Parser(String pattern, List<BitSet> sets) {
+            this.pattern = pattern;
+            this.sets = sets;
+        }
+
+        Fragment parse() {
+            if (pattern.startsWith("^")) {
+                position++;
+            }
+            final Fragment fragment = alternation();
+            if (position < pattern.length() && pattern.charAt(position) == '$'
+                    && position == pattern.length() - 1) {
+                position++;
+            }
+            if (position < pattern.length()) {
+                throw error("unexpected '" + pattern.charAt(position) + "'");
+            }
+            return fragment;
+        }
+
+        private Fragment alternation() {
+            Fragment fragment = concatenation();
+            while (peek('|')) {
+                position++;
+                final Fragment other = concatenation();
+                final State start = new State(null);
+                final State end = new State(null);
+                start.epsilons.add(fragment.start);
+                start.epsilons.add(other.start);
+                fragment.end.epsilons.add(end);
+                other.end.epsilons.add(end);
+                fragment = new Fragment(start, end);
+            }
+            return fragment;
+        }
+
+        private Fragment concatenation() {
+            final State start = new State(null);
+            State end = start;
+            while (position < pattern.length() && !peek('|') && !peek(')')
+                    && !(peek('$') && position == pattern.length() - 1)) {
+                final Fragment fragment = repetition();
+                end.epsilons.add(fragment.start);
+                end = fragment.end;
+            }
+            return new Fragment(start, end);
+        }
+
+        private Fragment repetition() {
+            Fragment fragment = atom();
+            while (position < pattern.length()) {
+                final char c = pattern.charAt(position);
+                if (c != '*' && c != '+' && c != '?') {
+                    if (c == '{') {
+                        throw error("counted repetition not supported");
+                    }
+                    break;
+                }
+                position++;
+                final State start = new State(null);
+                final State end = new State(null);
+                start.epsilons.add(fragment.start);
+                if (c != '+') {
+                    start.epsilons.add(end);
+                }
+                if (c != '?') {
+                    fragment.end.epsilons.add(fragment.start);
+                }
+                fragment.end.epsilons.add(end);
+                fragment = new Fragment(start, end);
+            }
+            return fragment;
+        }
+
+        private Fragment atom() {
+            final char c = pattern.charAt(position++);
+            switch (c) {
+                case '(': {
+                    if (pattern.startsWith("?:", position)) {
+                        position += 2;
+                    } else if (peek('?')) {
+                        throw error("group construct not supported");
+                    }
+                    final Fragment fragment = alternation();
+                    if (!peek(')')) {
+                        throw error("missing ')'");
+                    }
+                    position++;
+                    return fragment;
+                }
+                case '[':
+                    return symbols(characterClass());
+                case '.': {
+                    final BitSet all = new BitSet(SYMBOLS);
+                    all.set(0, SYMBOLS);
+                    return symbols(all);
+                }
+                case '\\':
+                    return symbols(escape());
+                case '*':
+                case '+':
+                case '?':
+                case '{':
+                case ')':
+                case '|':
+                case '^':
+                case '$':
+                    throw error("unexpected '" + c + "'");
+                default:
+                    return symbols(single(c));
+            }
+        }
+
+        private BitSet characterClass() {
+            final BitSet set = new BitSet(SYMBOLS);
+            final boolean negated = peek('^');
+            if (negated) {
+                position++;
+            }
+            boolean first = true;
+            while (position < pattern.length() && (first || !peek(']'))) {
+                first = false;
+                final char c = pattern.charAt(position++);
+                if (c == '\\') {
+                    set.or(escape());
+                } else if (position + 1 < pattern.length() && peek('-') && pattern.charAt(position + 1) != ']') {
+                    final char to = pattern.charAt(position + 1);
+                    position += 2;
+                    if (to < c) {
+                        throw error("invalid range " + c + "-" + to);
+                    }
+                    for (char ch = c; ch <= to; ch++) {
+                        set.or(single(ch));
+                    }
+                } else {
+                    set.or(single(c));
+                }
+            }
+            if (!peek(']')) {
+                throw error("missing ']'");
+            }
+            position++;
+            if (negated) {
+                set.flip(0, SYMBOLS);
+            }
+            return set;
+        }
+
+        private BitSet escape() {
+            if (position >= pattern.length()) {
+                throw error("trailing '\\'");
+            }
+            final char c = pattern.charAt(position++);
+            final BitSet set = new BitSet(SYMBOLS);
+            switch (c) {
+                case 'd':
+                case 'D':
+                    set.set('0', '9' + 1);
+                    break;
+                case 'w':
+                case 'W':
+                    set.set('a', 'z' + 1);
+                    set.set('A', 'Z' + 1);
+                    set.set('0', '9' + 1);
+                    set.set('_');
+                    break;
+                case 's':
+                case 'S':
+                    set.set(' ');
+                    set.set('\t', '\r' + 1);
+                    break;
+                default:
+                    if (Character.isLetterOrDigit(c)) {
+                        throw error("escape sequence '\\" + c + "' not supported");
+                    }
+                    return single(c);
+            }
+            if (Character.isUpperCase(c)) {
+                set.flip(0, SYMBOLS);
+            }
+            return set;
+        }
+
+        private BitSet single(char c) {
+            if (c >= OTHER) {
+                throw error("non-ASCII character '" + c + "' not supported");
+            }
+            final BitSet set = new BitSet(SYMBOLS);
+            set.set(c);
+            return set;
+        }
+
+        private Fragment symbols(BitSet set) {
+            sets.add(set);
+            final State start = new State(set);
+            final State end = new State(null);
+            start.next = end;
+            return new Fragment(start, end);
+        }
+
+        private boolean peek(char c) {
+            return position < pattern.length() && pattern.charAt(position) == c;
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("invalid pattern '" + pattern + "': " + message);
+        }
+    }
+
+    /**
+     * Builds the deterministic automaton by subset construction, over the
+     * classes of symbols which no pattern tells apart.
+     */
+    private static NameMatcher determinize(State start, State accept, List<BitSet> sets) {
+        final int[] classes = new int[SYMBOLS];
+        final Map<BitSet, Integer> signatures = new HashMap<>();
+        final int[] representatives = new int[SYMBOLS];
+        for (int symbol = 0; symbol < SYMBOLS; symbol++) {
+            final BitSet signature = new BitSet(sets.size());
+            for (int i = 0; i < sets.size(); i++) {
+                if (sets.get(i).get(symbol)) {
+                    signature.set(i);
+                }
+            }
+            Integer index = signatures.get(signature);
+            if (index == null) {
+                index = signatures.size();
+                signatures.put(signature, index);
+                representatives[index] = symbol;
+            }
+            classes[symbol] = index;
+        }
+        final int classCount = signatures.size();
+
+        final Map<State, Integer> ids = new IdentityHashMap<>();
+        final List<State> states = new ArrayList<>();
+        number(start, ids, states);
+
+        final Map<BitSet, Integer> dfaIds = new HashMap<>();
+        final List<BitSet> dfaStates = new ArrayList<>();
+        dfaStates.add(new BitSet()); // dead
+        dfaIds.put(dfaStates.get(DEAD), DEAD);
+        final BitSet initial = new BitSet();
+        closure(start, ids, initial);
+        dfaStates.add(initial);
+        dfaIds.put(initial, START);
+
+        int[] transitions = new int[16 * classCount];
+        final Deque<Integer> queue = new ArrayDeque<>();
+        queue.add(START);
+        while (!queue.isEmpty()) {
+            final int current = queue.poll();
+            final BitSet members = dfaStates.get(current);
+            for (int c = 0; c < classCount; c++) {
+                final int symbol = representatives[c];
+                final BitSet target = new BitSet();
+                for (int i = members.nextSetBit(0); i >= 0; i = members.nextSetBit(i + 1)) {
+                    final State state = states.get(i);
+                    if (state.symbols != null && state.symbols.get(symbol)) {
+                        closure(state.next, ids, target);
+                    }
+                }
+                Integer id = dfaIds.get(target);
+                if (id == null) {
+                    if (dfaStates.size() == MAX_STATES) {
+                        throw new IllegalArgumentException("patterns too complex, more than "
+                                + MAX_STATES + " states");
+                    }
+                    id = dfaStates.size();
+                    dfaStates.add(target);
+                    dfaIds.put(target, id);
+                    queue.add(id);
+                }
+                final int index = current * classCount + c;
+                if (index >= transitions.length) {
+                    transitions = Arrays.copyOf(transitions, Math.max(index + 1, transitions.length * 2));
+                }
+                transitions[index] = id;
+            }
+        }
+
+        final int acceptId = ids.get(accept);
+        final boolean[] accepting = new boolean[dfaStates.size()];
+        for (int i = 0; i < accepting.length; i++) {
+            accepting[i] = dfaStates.get(i).get(acceptId);
+        }
+        return new NameMatcher(classes, classCount,
+                Arrays.copyOf(transitions, dfaStates.size() * classCount), accepting);
+    }
+
+    private static void number(State start, Map<State, Integer> ids, List<State> states) {
+        final Deque<State> stack = new ArrayDeque<>();
+        stack.push(start);
+        while (!stack.isEmpty()) {
+            final State state = stack.pop();
+            if (ids.containsKey(state)) {
+                continue;
+            }
+            ids.put(state, states.size());
+            states.add(state);
+            if (state.next != null) {
+                stack.push(state.next);
+            }
+            for (State epsilon : state.epsilons) {
+                stack.push(epsilon);
+            }
+        }
+    }
+
+    /**
+     * Adds the states reachable from the given state without consuming a
+     * symbol, only states consuming a symbol and the accepting state are kept
+     * so that equivalent subsets are recognized as such.
+     */
+    private static void closure(State state, Map<State, Integer> ids, BitSet result) {
+        final BitSet visited = new BitSet();
+        final Deque<State> stack = new ArrayDeque<>();
+        stack.push(state);
+        while (!stack.isEmpty()) {
+            final State current = stack.pop();
+            final int id = ids.get(current);
+            if (visited.get(id)) {
+                continue;
+            }
+            visited.set(id);
+            if (current.symbols != null || current.epsilons.isEmpty()) {
+                result.set(id);
+            }
+            for (State epsilon : current.epsilons) {
+                stack.push(epsilon);
+            }
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2022 Tony Guo. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jxtras.android.build.tools.arpt;
+
+import jxtras.android.build.tools.annotation.NonNull;
+import jxtras.android.build.tools.annotation.Nullable;
+import jxtras.android.build.tools.util.FileUtils;
+import jxtras.android.build.tools.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A content addressed cache of pruned values files, which may be shared by
+ * several target products, modules, builds and arpt processes.
+ * <p>
+ * The pruned content of a values file only depends on its content and on the
+ * resources to be removed of the types it declares, so entries are keyed by
+ * the hash of the former and the digest of the latter, see {@link
+ * RemovalIndex#getDigest(Set)}. The types declared by each file are cached by
+ * its hash as well, so a hit doesn't need to parse the file at all.
+ * <p>
+ * All files are written to a temp file first and then moved into place, see
+ * {@link FileUtils#write(Path, ByteBuffer...)}, so concurrent processes never
+ * see partially written entries. Entries which vanish while being used, e.g.
+ * evicted by another process, are treated as misses. The cache is kept below
+ * its maximum size by evicting the least recently used entries, by the
+ * modification times of their {@code .meta} and {@code .types} files, which
+ * are touched on each hit. The pruned content itself is never touched, since
+ * outputs may be hard links of it.
+ */
+public class OutputCache {
+    /** The version of the cache layout, entries of other versions are ignored */
+    private static final String VERSION = "v1";
+    /** Temp files older than this are left over by crashed processes */
+    private static final long STALE_TEMP_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * A cached pruned values file.
+     */
+    public static final class Entry {
+        private final Path file;
+        private final String outputHash;
+        private final int count;
+
+        private Entry(@Nullable Path file, @NonNull String outputHash, int count) {
+            this.file = file;
+            this.outputHash = outputHash;
+            this.count = count;
+        }
+
+        /**
+         * Get the pruned content, or null if nothing is removed from the
+         * source file.
+         */
+        public @Nullable Path getFile() {
+            return file;
+        }
+
+        /**
+         * Get the SHA-256 hash of the pruned content.
+         */
+        public @NonNull String getOutputHash() {
+            return outputHash;
+        }
+
+        /**
+         * Get the number of resources removed.
+         */
+        public int getCount() {
+            return count;
+        }
+    }
+
+    private final Path dir;
+    private final long maxSize;
+
+    /**
+     * @param maxSize the size in bytes the cache is trimmed to.
+     */
+    public OutputCache(@NonNull Path dir, long maxSize) {
+        this.dir = dir.resolve(VERSION);
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get the resource types which may be declared by the given values file:
+     * the tags of its elements and the types they're resolved to.
+     */
+    public static @NonNull Set<String> getTypes(@NonNull ValuesFile valuesFile) {
+        final Set<String> types = new TreeSet<>();
+        for (ValuesFile.Entry entry : valuesFile.getEntries()) {
+            types.add(entry.getTag());
+            final Resolver resolver = Resolver.of(entry.getTag(), entry.getType());
+            if (resolver != null) {
+                types.add(resolver.getResourceType());
+                types.add(resolver.getType());
+            }
+        }
+        return types;
+    }
+
+    /**
+     * Get the types declared by the values file of the given hash, see {@link
+     * #getTypes(ValuesFile)}, or null if unknown.
+     */
+    public @Nullable Set<String> getTypes(@NonNull String inputHash) {
+        final Path file = path(inputHash, ".types");
+        try {
+            final Set<String> types = new TreeSet<>();
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                if (!line.isEmpty()) {
+                    types.add(line);
+                }
+            }
+            touch(file);
+            return types;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            Log.debug("arpt: failed to read cache entry: {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    public void putTypes(@NonNull String inputHash, @NonNull Set<String> types) {
+        final Path file = path(inputHash, ".types");
+        put(file, file, ByteBuffer.wrap(String.join("\n", types).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Get the entry of the values file of the given hash pruned with the given
+     * digest, or null if there is none.
+     */
+    public @Nullable Entry get(@NonNull String inputHash, @NonNull String digest) {
+        final Path meta = path(inputHash + "-" + digest, ".meta");
+        try {
+            final String[] fields = new String(Files.readAllBytes(meta), StandardCharsets.UTF_8).trim().split(" ");
+            if (fields.length != 2) {
+                return null;
+            }
+            final Path file = inputHash.equals(fields[0]) ? null : path(inputHash + "-" + digest, ".xml");
+            if (file != null && !Files.isRegularFile(file)) {
+                return null;
+            }
+            touch(meta);
+            return new Entry(file, fields[0], Integer.parseInt(fields[1]));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | NumberFormatException e) {
+            Log.debug("arpt: failed to read cache entry: {}: {}", meta, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Adds the given pruned content of the given values file of the given
+     * hash, or null if nothing is removed from it. The permissions of the
+     * content are copied from the values file, as outputs may link to it.
+     */
+    public void put(@NonNull Path source, @NonNull String inputHash, @NonNull String digest,
+                    @Nullable ByteBuffer[] content, @NonNull String outputHash, int count) {
+        if (content == null || put(path(inputHash + "-" + digest, ".xml"), source, content)) {
+            final Path meta = path(inputHash + "-" + digest, ".meta");
+            put(meta, meta, ByteBuffer.wrap((outputHash + " " + count).getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    /**
+     * Makes the target file a hard link or a copy of the pruned content of the
+     * given entry.
+     *
+     * @param copy whether to always copy, e.g. when pruning in place where the
+     *             target may be modified later on.
+     * @return false if the entry vanished in the meantime.
+     */
+    public boolean materialize(@NonNull Entry entry, @NonNull Path target, boolean copy) throws IOException {
+        try {
+            if (copy) {
+                FileUtils.write(target, ByteBuffer.wrap(Files.readAllBytes(entry.file)));
+            } else {
+                FileUtils.linkOrCopy(entry.file, target);
+            }
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache is no larger
+     * than its maximum size, and deletes temp files left over by crashed
+     * processes.
+     */
+    public void trim() {
+        final List<Path> keys = new ArrayList<>();
+        final Map<Path, FileTime> used = new HashMap<>();
+        final Map<Path, Long> sizes = new HashMap<>();
+        long total = 0;
+        final long now = System.currentTimeMillis();
+        try (DirectoryStream<Path> buckets = Files.newDirectoryStream(dir)) {
+            for (Path bucket : buckets) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(bucket)) {
+                    for (Path file : files) {
+                        final String name = file.getFileName().toString();
+                        final BasicFileAttributes attrs;
+                        try {
+                            attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                        } catch (NoSuchFileException e) {
+                            continue;
+                        }
+                        if (name.endsWith(".tmp")) {
+                            if (now - attrs.lastModifiedTime().toMillis() > STALE_TEMP_MILLIS) {
+                                Files.deleteIfExists(file);
+                            }
+                            continue;
+                        }
+                        final Path key = bucket.resolve(name.substring(0, name.lastIndexOf('.')));
+                        sizes.merge(key, attrs.size(), Long::sum);
+                        total += attrs.size();
+                        if (name.endsWith(".meta") || name.endsWith(".types")) {
+                            keys.add(key);
+                            used.put(key, attrs.lastModifiedTime());
+                        }
+                    }
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return;
+        } catch (IOException e) {
+            Log.warn("arpt: failed to trim cache: " + e.getMessage());
+            return;
+        }
+
+        // pruned content whose .meta is missing (e.g. a crashed put) is evicted first
+        final List<Path> orphans = new ArrayList<>(sizes.keySet());
+        orphans.removeAll(used.keySet());
+        Collections.sort(keys, Comparator.comparing(used::get));
+        orphans.addAll(keys);
+        int evicted = 0;
+        for (Path key : orphans) {
+            if (total <= maxSize) {
+                break;
+            }
+            for (String suffix : new String[] { ".meta", ".types", ".xml" }) {
+                FileUtils.deleteQuietly(key.resolveSibling(key.getFileName() + suffix));
+            }
+            total -= sizes.get(key);
+            evicted++;
+        }
+        if (evicted > 0) {
+            Log.info("arpt: " + evicted + " cache entry(s) evicted, " + total + " bytes left");
+        }
+    }
+
+    private Path path(String key, String suffix) {
+        return dir.resolve(key.substring(0, 2)).resolve(key + suffix);
+    }
+
+    private static boolean put(Path file, Path template, ByteBuffer... content) {
+        try {
+            FileUtils.write(file, template, content);
+            return true;
+        } catch (IOException e) {
+            Log.debug("arpt: failed to write cache entry: {}: {}", file, e.getMessage());
+            return false;
+        }
+    }
+
+    private static void touch(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // evicted in the meantime, the entry is still used this time
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2022 Tony Guo. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jxtras.android.build.tools.arpt;
+
+import jxtras.android.build.tools.annotation.NonNull;
+import jxtras.android.build.tools.annotation.Nullable;
+import jxtras.android.build.tools.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Overlaps the reads and writes of values files with pruning them, for file
+ * systems where each I/O operation has a high latency, e.g. NFS.
+ * <p>
+ * Files are read ahead in the order they're pruned by a pool of I/O threads,
+ * and their pruned content is handed back to the pool to be written, so the
+ * threads used for pruning neither wait for reads nor for writes. The bytes
+ * of a file are in flight from the time it's read until all its outputs are
+ * written; reading ahead stops while the bytes in flight would exceed the
+ * cap, so memory stays bounded however large the tree is. A file which isn't
+ * read yet when it's pruned is read by the pruning thread itself.
+ */
+public class Pipeline implements AutoCloseable {
+
+    /**
+     * A values file passing through the pipeline.
+     */
+    private static final class Slot {
+        final Path file;
+        final long size;
+        final CompletableFuture<ByteBuffer> content = new CompletableFuture<>();
+        /** Whether the file is being read or done with, guarded by the pipeline */
+        boolean admitted;
+        /** Whether the size of the file is counted in flight, guarded by the pipeline */
+        boolean reserved;
+        /** The pruning task and the writes of the file not done yet, guarded by the pipeline */
+        int pending = 1;
+
+        Slot(@NonNull Path file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+    }
+
+    private final long maxInFlight;
+    private final Map<Path, Slot> slots = new ConcurrentHashMap<>();
+    private final ExecutorService io;
+    private final Thread reader;
+    private long inFlight;
+    private int writes;
+    private boolean closed;
+
+    /**
+     * Starts reading ahead the given files.
+     *
+     * @param files the size of each file, in the order they're pruned.
+     * @param ioThreads the number of threads reading and writing files.
+     * @param maxInFlight the bytes in flight at most, a file larger than this
+     *                    is read ahead only when nothing else is in flight.
+     */
+    public Pipeline(@NonNull Map<Path, Long> files, int ioThreads, long maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        final List<Slot> order = new ArrayList<>(files.size());
+        for (Map.Entry<Path, Long> entry : files.entrySet()) {
+            final Slot slot = new Slot(entry.getKey(), entry.getValue());
+            slots.put(slot.file, slot);
+            order.add(slot);
+        }
+        final AtomicInteger threads = new AtomicInteger();
+        io = Executors.newFixedThreadPool(ioThreads, task -> {
+            final Thread thread = new Thread(task, "arpt-io-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        final Runnable readAhead = Log.inContext(() -> readAhead(order));
+        reader = new Thread(readAhead, "arpt-read-ahead");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void readAhead(@NonNull List<Slot> order) {
+        for (Slot slot : order) {
+            synchronized (this) {
+                while (!closed && !slot.admitted && inFlight > 0 && inFlight + slot.size > maxInFlight) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                } else if (slot.admitted) {
+                    continue;
+                }
+                admit(slot);
+            }
+            io.execute(Log.inContext(() -> read(slot)));
+        }
+    }
+
+    /**
+     * Get the content of the given file, waiting for it to be read if it's
+     * being read ahead, or reading it right away if it isn't yet. A file read
+     * right away is in flight like one read ahead, so reading ahead waits for
+     * it to be done with as well.
+     */
+    public @NonNull ByteBuffer take(@NonNull Path file) throws IOException {
+        final Slot slot = slots.get(file);
+        if (slot == null) {
+            return ValuesFile.load(file);
+        }
+        final boolean claimed;
+        synchronized (this) {
+            claimed = !slot.admitted;
+            if (claimed) {
+                admit(slot);
+            }
+        }
+        if (claimed) {
+            read(slot);
+        }
+        try {
+            return slot.content.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while reading " + file);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    /**
+     * Writes an output of the given file on an I/O thread, the file stays in
+     * flight until the write is done. What the write logs is captured with
+     * the log of the current thread, see {@link Log#deferred(Runnable)}.
+     */
+    public void write(@NonNull Path file, @NonNull Runnable task) {
+        final Slot slot = slots.get(file);
+        synchronized (this) {
+            writes++;
+            if (slot != null) {
+                slot.pending++;
+            }
+        }
+        io.execute(Log.deferred(() -> {
+            try {
+                task.run();
+            } finally {
+                synchronized (this) {
+                    writes--;
+                    release(slot);
+                }
+            }
+        }));
+    }
+
+    /**
+     * Tells that the given file is pruned, it's no longer in flight once all
+     * its writes are done as well. Files which are done with before being
+     * read ahead aren't read ahead at all.
+     */
+    public synchronized void done(@NonNull Path file) {
+        release(slots.get(file));
+    }
+
+    /**
+     * Waits for all writes and stops reading ahead.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            while (writes > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            closed = true;
+            notifyAll();
+        }
+        io.shutdown();
+    }
+
+    private void admit(@NonNull Slot slot) {
+        slot.admitted = true;
+        slot.reserved = true;
+        inFlight += slot.size;
+    }
+
+    private void release(@Nullable Slot slot) {
+        if (slot != null && --slot.pending == 0) {
+            slot.admitted = true;
+            if (slot.reserved) {
+                slot.reserved = false;
+                inFlight -= slot.size;
+            }
+            slots.remove(slot.file);
+        }
+        notifyAll();
+    }
+
+    private static void read(@NonNull Slot slot) {
+        try {
+            slot.content.complete(ValuesFile.load(slot.file));
+        } catch (IOException | RuntimeException e) {
+            slot.content.completeExceptionally(e);
+        }
+    }
+}
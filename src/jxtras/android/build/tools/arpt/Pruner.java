@@ -0,0 +1,1361 @@
+/*
+ * Copyright (C) 2022 Tony Guo. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jxtras.android.build.tools.arpt;
+
+import jxtras.android.build.tools.annotation.NonNull;
+import jxtras.android.build.tools.annotation.Nullable;
+import jxtras.android.build.tools.util.FileUtils;
+import jxtras.android.build.tools.util.Hashing;
+import jxtras.android.build.tools.util.Log;
+import jxtras.android.build.tools.util.XmlUtils;
+import jxtras.android.build.tools.util.ZipArchive;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Removes all resources of a {@link RemovalIndex} from a resource directory,
+ * either in place or into a separate output directory.
+ * <p>
+ * The resource directory is walked only once (see {@link ResourceIndex}):
+ * every {@code values*} XML file is parsed once, all value resources to be
+ * removed are dropped together and the file is written back at most once.
+ * <p>
+ * Values files are tokenized by {@link ValuesFile}, which splices the removed
+ * resources out without rewriting the rest of the file. Files in encodings it
+ * can't handle fall back to a DOM round trip.
+ * <p>
+ * When pruning out of place, a pruner may prune for several target products
+ * at once: each source file is read and tokenized once, and the resources
+ * kept by each target are written into its own output directory. Zip
+ * archives of resources are pruned into new archives the same way, see
+ * {@link #pruneArchive(Path, Map)}.
+ * <p>
+ * With {@link #setTransitive(boolean)}, the removal index of each target is
+ * extended by the resources only referenced by removed resources before any
+ * file is pruned, see {@link ReferenceGraph}. With {@link #setDedupe(boolean)},
+ * resources identical to the ones they fall back to are removed as well, see
+ * {@link Deduper}.
+ */
+public class Pruner {
+
+    private final List<Target> configured = new ArrayList<>();
+    /** The targets of the current run, with resources removed transitively if enabled */
+    private List<Target> targets = configured;
+    private final int parallelism;
+    private Manifest manifest;
+    private OutputCache cache;
+    private ForkJoinPool pool;
+    private boolean transitive;
+    private boolean dedupe;
+    private Metrics metrics = new Metrics();
+    private int ioThreads;
+    private long maxInFlight;
+    /** The pipeline of the values files of the current run, if enabled */
+    private Pipeline pipeline;
+
+    /**
+     * A target product to prune for.
+     */
+    private static final class Target {
+        final String name;
+        final RemovalIndex index;
+        final CandidateFilter filter;
+        final Set<String> filePaths;
+        /** The configurations kept, or null if all are kept */
+        final ConfigFilter configs;
+        /** Prepended to the log of this target if there are several targets */
+        final String label;
+        /** The redundant resources of the current run, or null if not deduping */
+        Deduper redundant;
+        /** The density variants dropped in the current run, see {@link ConfigFilter#findDroppedVariants(List)} */
+        Set<Path> variants = Collections.emptySet();
+
+        Target(@NonNull String name, @NonNull RemovalIndex index, @NonNull String label) {
+            this.name = name;
+            this.index = index;
+            this.filter = CandidateFilter.compile(getValueResourceNames(index), getValuePatternPrefixes(index));
+            this.filePaths = index.getResourceNames(Resolver.FILE.getResourceType());
+            this.configs = index.getConfigs() != null ? ConfigFilter.compile(index.getConfigs()) : null;
+            this.label = label;
+        }
+
+        boolean keeps(@NonNull String dirName) {
+            return configs == null || configs.accepts(dirName);
+        }
+
+        boolean hasRedundantValues(@NonNull Path valuesFile) {
+            return redundant != null && redundant.hasRedundantValues(valuesFile);
+        }
+
+        /**
+         * Get the digest of the resources removed from the given values file,
+         * see {@link RemovalIndex#getDigest()}, which covers its redundant
+         * value resources as well.
+         */
+        @NonNull String getDigest(@NonNull Path valuesFile) {
+            return withRedundant(index.getDigest(), valuesFile);
+        }
+
+        /**
+         * Like {@link #getDigest(Path)}, but only of the given resource types,
+         * see {@link RemovalIndex#getDigest(Set)}.
+         */
+        @NonNull String getDigest(@NonNull Set<String> types, @NonNull Path valuesFile) {
+            return withRedundant(index.getDigest(types), valuesFile);
+        }
+
+        private @NonNull String withRedundant(@NonNull String digest, @NonNull Path valuesFile) {
+            final String redundantDigest = redundant != null ? redundant.getDigest(valuesFile) : null;
+            return redundantDigest != null
+                    ? Hashing.sha256((digest + "+" + redundantDigest).getBytes(StandardCharsets.UTF_8)) : digest;
+        }
+    }
+
+    public Pruner(@NonNull RemovalIndex index) {
+        this(index, 1);
+    }
+
+    /**
+     * @param parallelism the number of files pruned concurrently, if greater
+     *                    than 1 files are pruned on a work-stealing pool and the
+     *                    log of each file is flushed in the order of the files.
+     */
+    public Pruner(@NonNull RemovalIndex index, int parallelism) {
+        this(Collections.singletonMap("", index), parallelism);
+    }
+
+    /**
+     * Creates a pruner for several target products at once.
+     *
+     * @param indexes the removal index of each target product, by name.
+     * @param parallelism see {@link #Pruner(RemovalIndex, int)}.
+     */
+    public Pruner(@NonNull Map<String, RemovalIndex> indexes, int parallelism) {
+        for (Map.Entry<String, RemovalIndex> entry : indexes.entrySet()) {
+            final String name = entry.getKey();
+            configured.add(new Target(name, entry.getValue(), indexes.size() > 1 ? "[" + name + "] " : ""));
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Enables incremental pruning: values files recorded in the manifest as
+     * pruned with the same removal index are skipped if their content is
+     * still the output of the previous run.
+     */
+    public void setManifest(@Nullable Manifest manifest) {
+        this.manifest = manifest;
+    }
+
+    /**
+     * Takes pruned values files from the given cache where possible, instead
+     * of parsing and rewriting them, and adds the ones pruned to it.
+     */
+    public void setCache(@Nullable OutputCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Prunes files on the given pool instead of a pool of its own, so that
+     * pruners running concurrently share the same threads.
+     */
+    public void setPool(@Nullable ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Also removes resources which are only referenced by removed resources,
+     * see {@link ReferenceGraph}.
+     */
+    public void setTransitive(boolean transitive) {
+        this.transitive = transitive;
+    }
+
+    /**
+     * Also removes locale values and qualified files identical to the ones
+     * they fall back to, see {@link Deduper}.
+     */
+    public void setDedupe(boolean dedupe) {
+        this.dedupe = dedupe;
+    }
+
+    /**
+     * Reads values files ahead of pruning them and writes them behind it on
+     * the given number of I/O threads, see {@link Pipeline}.
+     *
+     * @param ioThreads the number of I/O threads, 0 to read and write files
+     *                  on the threads pruning them.
+     * @param maxInFlight the bytes of values files read but not yet written
+     *                    at most.
+     */
+    public void setPipelining(int ioThreads, long maxInFlight) {
+        this.ioThreads = ioThreads;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Records counters and timings into the given metrics, e.g. to share them
+     * between pruners of the same run.
+     */
+    public void setMetrics(@NonNull Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void prune(@NonNull File resDir) {
+        prune(Collections.singletonList(resDir));
+    }
+
+    public void prune(@NonNull List<File> resDirs) {
+        if (configured.size() != 1) {
+            throw new IllegalStateException("pruning in place requires a single target product");
+        }
+        final List<ResourceIndex> resources = new ArrayList<>();
+        final long start = System.nanoTime();
+        for (File resDir : resDirs) {
+            try {
+                resources.add(ResourceIndex.build(resDir.toPath(), this::isKeptByAny));
+            } catch (IOException e) {
+                Log.error("arpt: failed to list resources: " + resDir + ": " + e.getMessage());
+            }
+        }
+        metrics.record(Metrics.Phase.WALK, start);
+        targets = transitive ? expand(resources) : configured;
+        findRedundant(resources);
+        findDroppedVariants(resources);
+        final Target target = targets.get(0);
+
+        final List<Runnable> tasks = new ArrayList<>();
+        if (target.configs != null) {
+            for (ResourceIndex resource : resources) {
+                tasks.add(() -> removeConfigDirs(resource, target.variants));
+            }
+        }
+        run(tasks);
+
+        tasks.clear();
+        final Map<Path, Long> valuesFiles = new LinkedHashMap<>();
+        if (hasValueResources()) {
+            for (ResourceIndex resource : resources) {
+                for (Path path : resource.getValuesFiles()) {
+                    if (target.variants.contains(path)) {
+                        continue;
+                    }
+                    final Manifest.Stamp input = resource.getStamp(path);
+                    final List<Path> targetFiles = Collections.singletonList(path);
+                    if (!isLikelyUpToDate(path, input, targetFiles)) {
+                        valuesFiles.put(path, input.getSize());
+                    }
+                    tasks.add(() -> removeResourcesFromFile(path, input, targetFiles));
+                }
+            }
+        }
+        runPipelined(tasks, valuesFiles);
+
+        tasks.clear();
+        if (!target.filePaths.isEmpty() || target.redundant != null) {
+            for (ResourceIndex resource : resources) {
+                tasks.add(() -> removeFilesInDirectory(resource, target.filePaths, target.redundant));
+            }
+        }
+        run(tasks);
+    }
+
+    /**
+     * Builds the pruned copy of the input resource directory in the output
+     * directory, leaving the input untouched.
+     * <p>
+     * Files which are not modified by pruning are hard linked (or copied where
+     * hard links are not supported) rather than written, and outputs already
+     * up to date are left alone, so their modification times are preserved.
+     * Files in the output directory which are not part of the pruned tree are
+     * deleted.
+     */
+    public void prune(@NonNull Path inputDir, @NonNull Path outputDir) throws IOException {
+        if (configured.size() != 1) {
+            throw new IllegalStateException("expected an output dir for each target product");
+        }
+        prune(inputDir, Collections.singletonMap(configured.get(0).name, outputDir));
+    }
+
+    /**
+     * Builds the pruned copy of the input resource directory for each target
+     * product, see {@link #prune(Path, Path)}. The input is walked, read and
+     * tokenized only once for all targets.
+     *
+     * @param outputDirs the output directory of each target product, by name.
+     */
+    public void prune(@NonNull Path inputDir, @NonNull Map<String, Path> outputDirs) throws IOException {
+        final int count = configured.size();
+        final List<Path> targetDirs = new ArrayList<>(count);
+        final long start = System.nanoTime();
+        final ResourceIndex resources = ResourceIndex.build(inputDir, this::isKeptByAny);
+        metrics.record(Metrics.Phase.WALK, start);
+        targets = transitive ? expand(Collections.singletonList(resources)) : configured;
+        findRedundant(Collections.singletonList(resources));
+        findDroppedVariants(Collections.singletonList(resources));
+        final List<Set<String>> skippedDirs = new ArrayList<>(count);
+        final List<Map<String, List<Path>>> removedFiles = new ArrayList<>(count);
+        final List<Set<Path>> excluded = new ArrayList<>(count);
+        final List<Set<Path>> outputs = new ArrayList<>(count);
+        for (Target target : targets) {
+            final Path outputDir = outputDirs.get(target.name);
+            if (outputDir == null) {
+                throw new IllegalArgumentException("no output dir for target product: " + target.name);
+            }
+            targetDirs.add(outputDir);
+            final Map<String, List<Path>> files = findFiles(resources, target.filePaths);
+            removedFiles.add(files);
+            final Set<Path> excludedFiles = toSet(files);
+            if (target.redundant != null) {
+                excludedFiles.addAll(target.redundant.getFiles());
+            }
+            excludedFiles.addAll(target.variants);
+            excluded.add(excludedFiles);
+            outputs.add(new HashSet<>());
+            final Set<String> skipped = new TreeSet<>();
+            for (Path dir : resources.getSkippedDirs()) {
+                skipped.add(dir.getFileName().toString());
+            }
+            skippedDirs.add(skipped);
+        }
+
+        final boolean valueResources = hasValueResources();
+        final List<Runnable> tasks = new ArrayList<>();
+        final Map<Path, Long> valuesFiles = new LinkedHashMap<>();
+        for (Path file : resources.getFiles()) {
+            final Path relative = inputDir.relativize(file);
+            final List<Path> targetFiles = new ArrayList<>(count);
+            final String dirName = relative.getNameCount() > 1 ? relative.getName(0).toString() : null;
+            for (int i = 0; i < count; i++) {
+                if (dirName != null && !targets.get(i).keeps(dirName)) {
+                    skippedDirs.get(i).add(dirName);
+                    targetFiles.add(null);
+                } else if (excluded.get(i).contains(file)) {
+                    targetFiles.add(null);
+                } else {
+                    final Path targetFile = targetDirs.get(i).resolve(relative.toString());
+                    outputs.get(i).add(targetFile);
+                    targetFiles.add(targetFile);
+                }
+            }
+            if (resources.isValuesFile(file) && valueResources) {
+                final Manifest.Stamp input = resources.getStamp(file);
+                if (!isLikelyUpToDate(file, input, targetFiles)) {
+                    valuesFiles.put(file, input.getSize());
+                }
+                tasks.add(() -> removeResourcesFromFile(file, input, targetFiles));
+            } else {
+                tasks.add(() -> targetFiles.stream().filter(Objects::nonNull).forEach(t -> linkOrCopy(file, t)));
+            }
+        }
+        runPipelined(tasks, valuesFiles);
+
+        for (int i = 0; i < count; i++) {
+            final Target target = targets.get(i);
+            if (target.configs != null) {
+                for (String dirName : skippedDirs.get(i)) {
+                    Log.info("arpt: {}skipping config dir: {}", target.label, inputDir.resolve(dirName));
+                }
+                Log.info("arpt: {}{} config dir(s) skipped", target.label, skippedDirs.get(i).size());
+                logSkippedVariants(inputDir, targetDirs.get(i), target.variants, target.label);
+            }
+            if (!target.filePaths.isEmpty()) {
+                logSkippedFiles(inputDir, targetDirs.get(i), removedFiles.get(i), target.label);
+            }
+            if (target.redundant != null) {
+                logSkippedRedundantFiles(inputDir, targetDirs.get(i), target.redundant.getFiles(), target.label);
+            }
+            removeStaleFiles(targetDirs.get(i), outputs.get(i));
+        }
+    }
+
+    /**
+     * Builds the pruned copy of the input resource archive for each target
+     * product, like {@link #prune(Path, Map)} but without extracting it.
+     * <p>
+     * Entries which are not modified by pruning are copied raw, with their
+     * compressed bytes and CRCs reused, only pruned values files are
+     * compressed again and removed files are dropped. The archive is pruned
+     * below its {@code res} dir if that is all it contains, else below its
+     * root. Manifests and caches are not used for archives.
+     *
+     * @param outputArchives the output archive of each target product, by name.
+     */
+    public void pruneArchive(@NonNull Path inputArchive, @NonNull Map<String, Path> outputArchives)
+            throws IOException {
+        if (manifest != null || cache != null) {
+            Log.warn("arpt: manifest and cache are not used for archives: " + inputArchive);
+        }
+        try (ZipArchive archive = ZipArchive.open(inputArchive);
+             FileSystem fs = FileSystems.newFileSystem(inputArchive, (ClassLoader) null)) {
+            final Path resDir = getResDir(fs);
+            final long start = System.nanoTime();
+            final ResourceIndex resources = ResourceIndex.build(resDir, this::isKeptByAny);
+            metrics.record(Metrics.Phase.WALK, start);
+            targets = transitive ? expand(Collections.singletonList(resources)) : configured;
+            findRedundant(Collections.singletonList(resources));
+            findDroppedVariants(Collections.singletonList(resources));
+
+            final Map<Path, ByteBuffer[][]> pruned = new ConcurrentHashMap<>();
+            if (hasValueResources()) {
+                final List<Runnable> tasks = new ArrayList<>();
+                for (Path file : resources.getValuesFiles()) {
+                    tasks.add(() -> pruned.put(file, pruneArchivedValuesFile(file)));
+                }
+                run(tasks);
+            }
+
+            for (int i = 0; i < targets.size(); i++) {
+                final Target target = targets.get(i);
+                final Path outputArchive = outputArchives.get(target.name);
+                if (outputArchive == null) {
+                    throw new IllegalArgumentException("no output archive for target product: " + target.name);
+                }
+                final Map<String, List<Path>> removedFiles = findFiles(resources, target.filePaths);
+                final Set<Path> excluded = toSet(removedFiles);
+                if (target.redundant != null) {
+                    excluded.addAll(target.redundant.getFiles());
+                }
+                excluded.addAll(target.variants);
+                final Set<String> skippedDirs = new TreeSet<>();
+                final List<ZipArchive.Entry> kept = new ArrayList<>();
+                final Set<Path> keptDirs = new HashSet<>();
+                for (ZipArchive.Entry entry : archive.getEntries()) {
+                    final Path file = fs.getPath("/", entry.getName());
+                    if (file.startsWith(resDir) && !file.equals(resDir)) {
+                        final Path relative = resDir.relativize(file);
+                        final String dirName = relative.getNameCount() > 1 || entry.isDirectory()
+                                ? relative.getName(0).toString() : null;
+                        if (dirName != null && !target.keeps(dirName)) {
+                            skippedDirs.add(dirName);
+                            continue;
+                        } else if (excluded.contains(file)) {
+                            continue;
+                        }
+                    }
+                    kept.add(entry);
+                    if (!entry.isDirectory()) {
+                        for (Path dir = file.getParent(); dir != null && keptDirs.add(dir); dir = dir.getParent()) {
+                            // all parents of kept files are kept
+                        }
+                    }
+                }
+
+                final long time = System.nanoTime();
+                try (ZipArchive.Writer writer = new ZipArchive.Writer(outputArchive)) {
+                    writer.setComment(archive);
+                    for (ZipArchive.Entry entry : kept) {
+                        final Path file = fs.getPath("/", entry.getName());
+                        if (entry.isDirectory() && !keptDirs.contains(file)) {
+                            // like in output dirs, dirs left empty are dropped
+                            continue;
+                        }
+                        final ByteBuffer[][] contents = entry.isDirectory() ? null : pruned.get(file);
+                        if (contents != null && contents[i] != null) {
+                            writer.write(entry, contents[i]);
+                            metrics.increment(Metrics.Counter.FILES_REWRITTEN);
+                            metrics.add(Metrics.Counter.BYTES_WRITTEN, remaining(contents[i]));
+                        } else {
+                            writer.copy(archive, entry);
+                            metrics.increment(Metrics.Counter.ENTRIES_COPIED);
+                        }
+                    }
+                    writer.finish();
+                }
+                metrics.record(Metrics.Phase.WRITE, time);
+
+                if (target.configs != null) {
+                    for (String dirName : skippedDirs) {
+                        Log.info("arpt: {}skipping config dir: {}", target.label, resDir.resolve(dirName));
+                    }
+                    Log.info("arpt: {}{} config dir(s) skipped", target.label, skippedDirs.size());
+                    logSkippedVariants(resDir, outputArchive, target.variants, target.label);
+                }
+                if (!target.filePaths.isEmpty()) {
+                    logSkippedFiles(resDir, outputArchive, removedFiles, target.label);
+                }
+                if (target.redundant != null) {
+                    logSkippedRedundantFiles(resDir, outputArchive, target.redundant.getFiles(), target.label);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the resource dir of an archive, which is its {@code res} dir if
+     * that is all it contains, else its root.
+     */
+    private static @NonNull Path getResDir(@NonNull FileSystem fs) throws IOException {
+        final Path root = fs.getPath("/");
+        final Path res = root.resolve("res");
+        if (Files.isDirectory(res)) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(root)) {
+                final Iterator<Path> it = entries.iterator();
+                if (it.hasNext()) {
+                    it.next();
+                    if (!it.hasNext()) {
+                        return res;
+                    }
+                }
+            }
+        }
+        return root;
+    }
+
+    private void linkOrCopy(@NonNull Path source, @NonNull Path target) {
+        try {
+            FileUtils.linkOrCopy(source, target);
+            metrics.increment(Metrics.Counter.FILES_LINKED);
+        } catch (IOException e) {
+            Log.error("arpt: failed to link " + source + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Deletes all files below the output directory which are not among the
+     * given outputs, as well as directories left empty.
+     */
+    private void removeStaleFiles(@NonNull Path outputDir, @NonNull Set<Path> outputs) throws IOException {
+        final long start = System.nanoTime();
+        final int[] deleted = new int[1];
+        Files.walkFileTree(outputDir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (!outputs.contains(file)) {
+                    Log.debug("arpt: deleting stale output: {}", file);
+                    Files.delete(file);
+                    metrics.increment(Metrics.Counter.FILES_DELETED);
+                    deleted[0]++;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                if (!dir.equals(outputDir)) {
+                    try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                        if (!entries.iterator().hasNext()) {
+                            Files.delete(dir);
+                        }
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        if (deleted[0] > 0) {
+            metrics.record(Metrics.Phase.DELETE, start);
+        }
+    }
+
+    private void run(@NonNull List<Runnable> tasks) {
+        if ((pool == null && parallelism <= 1) || tasks.size() <= 1) {
+            if (pipeline == null) {
+                tasks.forEach(Runnable::run);
+                return;
+            }
+            // writes log on I/O threads, so the log of each task is flushed once its writes are done
+            final Deque<Log.Buffer> results = new ArrayDeque<>();
+            for (Runnable task : tasks) {
+                results.add(Log.capture(task));
+                while (!results.isEmpty() && results.peek().isComplete()) {
+                    results.poll().flush();
+                }
+            }
+            results.forEach(Log.Buffer::flush);
+            return;
+        }
+
+        final ForkJoinPool executor = pool != null ? pool : new ForkJoinPool(parallelism);
+        try {
+            final List<ForkJoinTask<Log.Buffer>> results = new ArrayList<>(tasks.size());
+            for (Runnable task : tasks) {
+                results.add(executor.submit(Log.captured(task)));
+            }
+            for (ForkJoinTask<Log.Buffer> result : results) {
+                result.join().flush();
+            }
+        } finally {
+            if (executor != pool) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Runs the given tasks with the given values files passing through a
+     * pipeline, if enabled, see {@link #setPipelining(int, long)}.
+     *
+     * @param valuesFiles the size of each values file, in the order of the tasks.
+     */
+    private void runPipelined(@NonNull List<Runnable> tasks, @NonNull Map<Path, Long> valuesFiles) {
+        if (ioThreads <= 0 || valuesFiles.isEmpty()) {
+            run(tasks);
+            return;
+        }
+        try (Pipeline current = new Pipeline(valuesFiles, ioThreads, maxInFlight)) {
+            pipeline = current;
+            run(tasks);
+        } finally {
+            pipeline = null;
+        }
+    }
+
+    /**
+     * Returns whether the manifest records the given values file as pruned
+     * from the same input into all target files, in which case it isn't worth
+     * reading ahead; the outputs are only checked when pruning it.
+     */
+    private boolean isLikelyUpToDate(@NonNull Path source, @NonNull Manifest.Stamp input,
+                                     @NonNull List<Path> targetFiles) {
+        if (manifest == null) {
+            return false;
+        }
+        final boolean inPlace = targetFiles.size() == 1 && source.equals(targetFiles.get(0));
+        for (int i = 0; i < targetFiles.size(); i++) {
+            final Path targetFile = targetFiles.get(i);
+            if (targetFile == null) {
+                continue;
+            }
+            final Manifest.Entry previous = manifest.get(targetFile, targets.get(i).getDigest(source), source);
+            if (previous == null || !(inPlace ? previous.getOutput() : previous.getInput()).equals(input)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the targets with the resources only referenced by removed resources
+     * added to their removal indexes.
+     */
+    private @NonNull List<Target> expand(@NonNull List<ResourceIndex> resources) {
+        final long start = System.nanoTime();
+        final ReferenceGraph graph = ReferenceGraph.build(resources, this::run);
+        metrics.record(Metrics.Phase.REFERENCES, start);
+        final List<Target> result = new ArrayList<>(configured.size());
+        for (Target target : configured) {
+            result.add(new Target(target.name, graph.expand(target.index, target.label), target.label));
+        }
+        return result;
+    }
+
+    /**
+     * Finds the redundant resources of each target if deduping, see {@link
+     * Deduper}.
+     */
+    private void findRedundant(@NonNull List<ResourceIndex> resources) {
+        for (Target target : targets) {
+            target.redundant = null;
+        }
+        if (!dedupe) {
+            return;
+        }
+        final long start = System.nanoTime();
+        final List<Runnable> tasks = new ArrayList<>();
+        for (ResourceIndex resource : resources) {
+            for (Path file : resource.getValuesFiles()) {
+                if (isKeptByAny(file.getParent().getFileName().toString())) {
+                    tasks.add(() -> resource.getValueHashes(file));
+                }
+            }
+        }
+        run(tasks);
+        tasks.clear();
+        for (Target target : targets) {
+            tasks.add(() -> target.redundant = Deduper.build(resources, target::keeps));
+        }
+        run(tasks);
+        metrics.record(Metrics.Phase.DEDUPE, start);
+    }
+
+    /**
+     * Finds the density variants each target drops, see {@link
+     * ConfigFilter#findDroppedVariants(List)}.
+     */
+    private void findDroppedVariants(@NonNull List<ResourceIndex> resources) {
+        final List<Runnable> tasks = new ArrayList<>();
+        for (Target target : targets) {
+            target.variants = Collections.emptySet();
+            if (target.configs != null) {
+                tasks.add(() -> target.variants = target.configs.findDroppedVariants(resources));
+            }
+        }
+        run(tasks);
+    }
+
+    private boolean hasValueResources() {
+        for (Target target : targets) {
+            if (target.redundant != null && target.redundant.hasRedundantValues()) {
+                return true;
+            }
+            for (String resourceType : target.index.getResourceTypes()) {
+                final Resolver resolver = Resolver.get(resourceType);
+                if (resolver != null && resolver.isValueResource()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static Set<String> getValueResourceNames(@NonNull RemovalIndex index) {
+        final Set<String> names = new HashSet<>();
+        for (String resourceType : index.getResourceTypes()) {
+            final Resolver resolver = Resolver.get(resourceType);
+            if (resolver != null && resolver.isValueResource()) {
+                names.addAll(index.getResourceNames(resourceType));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Get the literal prefixes of the name patterns of value resources, see
+     * {@link NameMatcher#getLiteralPrefix(String)}.
+     */
+    private static Set<String> getValuePatternPrefixes(@NonNull RemovalIndex index) {
+        final Set<String> prefixes = new HashSet<>();
+        for (String resourceType : index.getResourceTypes()) {
+            final Resolver resolver = Resolver.get(resourceType);
+            if (resolver != null && resolver.isValueResource()) {
+                for (String pattern : index.getPatterns(resourceType)) {
+                    prefixes.add(NameMatcher.getLiteralPrefix(pattern));
+                }
+            }
+        }
+        return prefixes;
+    }
+
+    private boolean isKeptByAny(@NonNull String dirName) {
+        for (Target target : configured) {
+            if (target.keeps(dirName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Deletes the configuration dirs skipped when indexing the resources, and
+     * the given density variants among the resources.
+     */
+    private void removeConfigDirs(@NonNull ResourceIndex resources, @NonNull Set<Path> variants) {
+        final long start = System.nanoTime();
+        int count = 0;
+        for (Path dir : resources.getSkippedDirs()) {
+            Log.info("arpt: removing config dir: {}", dir);
+            try {
+                FileUtils.deleteRecursively(dir);
+                count++;
+            } catch (IOException e) {
+                Log.error("arpt: failed to remove config dir: " + dir + ": " + e.getMessage());
+            }
+        }
+        Log.info("arpt: {} config dir(s) removed", count);
+
+        final Set<Path> dirs = new TreeSet<>();
+        int removed = 0;
+        for (Path file : variants) {
+            if (!file.startsWith(resources.getResDir())) {
+                continue;
+            }
+            Log.info("arpt: removing density variant: {}", file);
+            try {
+                Files.delete(file);
+                metrics.increment(Metrics.Counter.FILES_DELETED);
+                dirs.add(file.getParent());
+                removed++;
+            } catch (IOException e) {
+                Log.error("arpt: failed to remove density variant: " + file + ": " + e.getMessage());
+            }
+        }
+        if (removed > 0) {
+            Log.info("arpt: {} density variant(s) removed", removed);
+        }
+        removeEmptyDirs(resources, dirs);
+        metrics.record(Metrics.Phase.DELETE, start);
+    }
+
+    /**
+     * Finds the files of each file rule path, see {@link ResourceIndex#findFiles(String)}.
+     */
+    private static @NonNull Map<String, List<Path>> findFiles(@NonNull ResourceIndex resources,
+                                                              @NonNull Set<String> filePaths) {
+        final Map<String, List<Path>> result = new TreeMap<>();
+        for (String path : filePaths) {
+            result.put(path, resources.findFiles(path));
+        }
+        return result;
+    }
+
+    private static @NonNull Set<Path> toSet(@NonNull Map<String, List<Path>> files) {
+        final Set<Path> result = new LinkedHashSet<>();
+        for (List<Path> paths : files.values()) {
+            result.addAll(paths);
+        }
+        return result;
+    }
+
+    /**
+     * Deletes all files of the file rule paths and the redundant files in one
+     * go, followed by the directories left empty.
+     */
+    private void removeFilesInDirectory(@NonNull ResourceIndex resources, @NonNull Set<String> filePaths,
+                                        @Nullable Deduper redundant) {
+        final long start = System.nanoTime();
+        final Map<String, List<Path>> files = findFiles(resources, filePaths);
+        final Set<Path> redundantFiles = new LinkedHashSet<>();
+        if (redundant != null) {
+            for (Path file : redundant.getFiles()) {
+                if (file.startsWith(resources.getResDir())) {
+                    redundantFiles.add(file);
+                }
+            }
+        }
+        final Set<Path> failed = new HashSet<>();
+        final Set<Path> dirs = new TreeSet<>();
+        final Set<Path> removed = toSet(files);
+        removed.addAll(redundantFiles);
+        for (Path file : removed) {
+            try {
+                Files.delete(file);
+                metrics.increment(Metrics.Counter.FILES_DELETED);
+                dirs.add(file.getParent());
+            } catch (IOException e) {
+                failed.add(file);
+            }
+        }
+        if (!filePaths.isEmpty()) {
+            logRemovedFiles(resources.getResDir(), files, failed, "");
+        }
+        if (redundant != null) {
+            logRedundantFiles(redundantFiles, failed, "");
+        }
+        removeEmptyDirs(resources, dirs);
+        metrics.record(Metrics.Phase.DELETE, start);
+    }
+
+    /**
+     * Deletes the given dirs if they're empty, and their parents left empty
+     * up to the resource dir.
+     */
+    private static void removeEmptyDirs(@NonNull ResourceIndex resources, @NonNull Set<Path> dirs) {
+        for (Path dir : dirs) {
+            Path current = dir;
+            while (!current.equals(resources.getResDir()) && isEmptyDirectory(current)) {
+                Log.debug("arpt: removing empty dir: {}", current);
+                try {
+                    Files.delete(current);
+                } catch (IOException e) {
+                    Log.warn("arpt: failed to remove empty dir: " + current);
+                    break;
+                }
+                current = current.getParent();
+            }
+        }
+    }
+
+    private static void logRemovedFiles(@NonNull Path resDir, @NonNull Map<String, List<Path>> files,
+                                        @NonNull Set<Path> failed, @NonNull String label) {
+        final Set<Path> removed = new HashSet<>();
+        for (Map.Entry<String, List<Path>> entry : files.entrySet()) {
+            if (entry.getValue().isEmpty()) {
+                Log.info("arpt: {}removing: {}", label, resDir.resolve(entry.getKey()));
+                Log.info("arpt: {}file does not exist", label);
+                continue;
+            }
+            for (Path file : entry.getValue()) {
+                Log.info("arpt: {}removing: {}", label, file);
+                if (failed.contains(file)) {
+                    Log.info("arpt: {}failed", label);
+                } else {
+                    removed.add(file);
+                    Log.info("arpt: {}file removed successfully", label);
+                }
+            }
+        }
+        Log.info("arpt: {}{} file(s) removed for {} path(s)", label, removed.size(), files.size());
+    }
+
+    /**
+     * Logs the files of the file rule paths left out of the output, which may
+     * be a dir or an archive, instead of being removed.
+     */
+    private static void logSkippedFiles(@NonNull Path resDir, @NonNull Path output,
+                                        @NonNull Map<String, List<Path>> files, @NonNull String label) {
+        int skipped = 0;
+        for (Map.Entry<String, List<Path>> entry : files.entrySet()) {
+            if (entry.getValue().isEmpty()) {
+                Log.info("arpt: {}skipping: {}", label, output.resolve(entry.getKey()));
+                Log.info("arpt: {}file does not exist", label);
+                continue;
+            }
+            for (Path file : entry.getValue()) {
+                Log.info("arpt: {}skipping: {}", label, output.resolve(resDir.relativize(file).toString()));
+                skipped++;
+            }
+        }
+        Log.info("arpt: {}{} file(s) skipped for {} path(s)", label, skipped, files.size());
+    }
+
+    private void logSkippedRedundantFiles(@NonNull Path resDir, @NonNull Path output, @NonNull Set<Path> files,
+                                          @NonNull String label) {
+        for (Path file : files) {
+            Log.info("arpt: {}skipping redundant file: {}", label, output.resolve(resDir.relativize(file).toString()));
+        }
+        metrics.add(Metrics.Counter.FILES_DEDUPED, files.size());
+        Log.info("arpt: {}{} redundant file(s) skipped", label, files.size());
+    }
+
+    /**
+     * Logs the density variants left out of the output, which may be a dir or
+     * an archive.
+     */
+    private static void logSkippedVariants(@NonNull Path resDir, @NonNull Path output, @NonNull Set<Path> files,
+                                           @NonNull String label) {
+        for (Path file : files) {
+            Log.info("arpt: {}skipping density variant: {}", label, output.resolve(resDir.relativize(file).toString()));
+        }
+        if (!files.isEmpty()) {
+            Log.info("arpt: {}{} density variant(s) skipped", label, files.size());
+        }
+    }
+
+    private void logRedundantFiles(@NonNull Set<Path> files, @NonNull Set<Path> failed, @NonNull String label) {
+        int count = 0;
+        for (Path file : files) {
+            Log.info("arpt: {}removing redundant file: {}", label, file);
+            if (failed.contains(file)) {
+                Log.info("arpt: {}failed", label);
+            } else {
+                count++;
+            }
+        }
+        metrics.add(Metrics.Counter.FILES_DEDUPED, count);
+        Log.info("arpt: {}{} redundant file(s) removed", label, count);
+    }
+
+    private static boolean isEmptyDirectory(@NonNull Path dir) {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            return !entries.iterator().hasNext();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The output of a values file for a single target product.
+     */
+    private static final class Output {
+        final Target target;
+        final Path path;
+        final Manifest.Entry previous;
+        final Manifest.Stamp stamp;
+
+        Output(@NonNull Target target, @NonNull Path path,
+               @Nullable Manifest.Entry previous, @Nullable Manifest.Stamp stamp) {
+            this.target = target;
+            this.path = path;
+            this.previous = previous;
+            this.stamp = stamp;
+        }
+    }
+
+    /**
+     * Prunes the source values file into the target file of each target
+     * product, which is the same as the source when pruning in place. Target
+     * products without a target file are skipped.
+     *
+     * @param input the size and modification time of the source file.
+     */
+    private void removeResourcesFromFile(@NonNull Path source, @NonNull Manifest.Stamp input,
+                                        @NonNull List<Path> targetFiles) {
+        final long start = System.nanoTime();
+        try {
+            pruneValuesFile(source, input, targetFiles);
+        } finally {
+            if (pipeline != null) {
+                pipeline.done(source);
+            }
+            metrics.recordFile(start);
+        }
+    }
+
+    private void pruneValuesFile(@NonNull Path source, @NonNull Manifest.Stamp input,
+                                 @NonNull List<Path> targetFiles) {
+        final List<Output> pending = new ArrayList<>();
+        final boolean inPlace = targetFiles.size() == 1 && source.equals(targetFiles.get(0));
+        final ByteBuffer buffer;
+        final String hash;
+        try {
+            for (int i = 0; i < targetFiles.size(); i++) {
+                final Target target = targets.get(i);
+                final Path targetFile = targetFiles.get(i);
+                if (targetFile == null) {
+                    continue;
+                }
+                final String digest = target.getDigest(source);
+                final Manifest.Entry previous = manifest != null ? manifest.get(targetFile, digest, source) : null;
+                final Manifest.Stamp output = inPlace ? input : stampOf(targetFile);
+                if (previous != null && previous.getOutput().equals(output)
+                        && (inPlace || previous.getInput().equals(input))) {
+                    Log.info("arpt: {}up-to-date: {}", target.label, source);
+                    metrics.increment(Metrics.Counter.FILES_UP_TO_DATE);
+                    manifest.put(targetFile, previous);
+                } else {
+                    pending.add(new Output(target, targetFile, previous, output));
+                }
+            }
+            if (pending.isEmpty()) {
+                return;
+            }
+
+            final long start = System.nanoTime();
+            buffer = pipeline != null ? pipeline.take(source) : ValuesFile.load(source);
+            hash = manifest != null || cache != null ? Hashing.sha256(buffer) : null;
+            metrics.record(Metrics.Phase.PARSE, start);
+            metrics.increment(Metrics.Counter.FILES_SCANNED);
+            metrics.add(Metrics.Counter.BYTES_READ, buffer.limit());
+            for (Iterator<Output> it = pending.iterator(); it.hasNext(); ) {
+                final Output output = it.next();
+                final Manifest.Entry previous = output.previous;
+                if (previous != null && (inPlace ? previous.getOutputHash().equals(hash)
+                        : previous.getInputHash().equals(hash) && previous.getOutput().equals(output.stamp))) {
+                    Log.info("arpt: {}up-to-date: {}", output.target.label, source);
+                    metrics.increment(Metrics.Counter.FILES_UP_TO_DATE);
+                    manifest.put(output.path, inPlace ? previous.withOutput(output.stamp) : previous.withInput(input));
+                    it.remove();
+                }
+            }
+            if (pending.isEmpty()) {
+                return;
+            }
+        } catch (Exception e) {
+            Log.error("arpt: exception occurred: " + e.getMessage());
+            for (Output output : pending) {
+                Log.info("arpt: {}0 resource(s) removed", output.target.label);
+            }
+            return;
+        }
+
+        Log.info("arpt: pruning: {}", source);
+        final boolean asciiCompatible = ValuesFile.isAsciiCompatible(buffer);
+        ValuesFile valuesFile = null;
+        Set<String> types = cache != null && asciiCompatible ? cache.getTypes(hash) : null;
+        for (Output output : pending) {
+            final Target target = output.target;
+            int count = 0;
+            try {
+                long time = System.nanoTime();
+                ByteBuffer[] content = null;
+                OutputCache.Entry cached = null;
+                if (asciiCompatible && !target.filter.matches(buffer) && !target.hasRedundantValues(source)) {
+                    Log.debug("arpt: {}no candidates found, skip parsing: {}", target.label, source);
+                } else if (asciiCompatible && types != null
+                        && (cached = materialize(source, output, types, hash, inPlace)) != null) {
+                    Log.debug("arpt: {}taken from cache: {}", target.label, source);
+                    count = cached.getCount();
+                } else if (asciiCompatible) {
+                    if (valuesFile == null) {
+                        valuesFile = ValuesFile.parse(buffer);
+                        time = metrics.record(Metrics.Phase.PARSE, time);
+                    }
+                    if (cache != null && types == null) {
+                        types = OutputCache.getTypes(valuesFile);
+                        cache.putTypes(hash, types);
+                    }
+                    final List<ValuesFile.Entry> removed = findRemovedEntries(source, valuesFile, target);
+                    if (!removed.isEmpty()) {
+                        content = valuesFile.splice(removed);
+                    }
+                    count = removed.size();
+                    if (cache != null) {
+                        cache.put(source, hash, target.getDigest(types, source), content,
+                                content != null ? Hashing.sha256(content) : hash, count);
+                        metrics.increment(Metrics.Counter.CACHE_MISSES);
+                    }
+                } else {
+                    Log.debug("arpt: {}not an ASCII compatible encoding, fall back to DOM: {}", target.label,
+                            source);
+                    final Document document = parseDocument(source.toFile());
+                    time = metrics.record(Metrics.Phase.PARSE, time);
+                    count = removeResourcesFromDocument(source, document, target);
+                    if (count > 0) {
+                        content = new ByteBuffer[] { ByteBuffer.wrap(saveDocument(document)) };
+                    }
+                }
+
+                metrics.record(Metrics.Phase.TRANSFORM, time);
+
+                final OutputCache.Entry hit = cached;
+                final ByteBuffer[] pruned = content;
+                if (pipeline != null) {
+                    pipeline.write(source, () -> writeOutput(source, input, hash, output, hit, pruned, inPlace));
+                } else {
+                    writeOutput(source, input, hash, output, hit, pruned, inPlace);
+                }
+            } catch (Exception e) {
+                Log.error("arpt: exception occurred: " + e.getMessage());
+            }
+            metrics.add(Metrics.Counter.ELEMENTS_REMOVED, count);
+            Log.info("arpt: {}{} resource(s) removed", target.label, count);
+        }
+    }
+
+    /**
+     * Writes the given output of the source values file and records it in the
+     * manifest.
+     *
+     * @param cached the cache entry the output was taken from, if any.
+     * @param content the pruned content, or null if nothing is removed.
+     */
+    private void writeOutput(@NonNull Path source, @NonNull Manifest.Stamp input, @Nullable String hash,
+                             @NonNull Output output, @Nullable OutputCache.Entry cached,
+                             @Nullable ByteBuffer[] content, boolean inPlace) {
+        final long time = System.nanoTime();
+        try {
+            if (cached != null) {
+                metrics.increment(Metrics.Counter.CACHE_HITS);
+            } else if (content != null) {
+                final long size = remaining(content);
+                final boolean written;
+                if (inPlace) {
+                    FileUtils.write(output.path, content);
+                    written = true;
+                } else {
+                    written = FileUtils.writeIfChanged(output.path, source, content);
+                }
+                if (written) {
+                    metrics.increment(Metrics.Counter.FILES_REWRITTEN);
+                    metrics.add(Metrics.Counter.BYTES_WRITTEN, size);
+                }
+            } else if (!inPlace) {
+                FileUtils.linkOrCopy(source, output.path);
+                metrics.increment(Metrics.Counter.FILES_LINKED);
+            }
+
+            if (manifest != null) {
+                manifest.put(output.path, new Manifest.Entry(output.target.getDigest(source), source,
+                        input, hash, Manifest.Stamp.of(output.path), cached != null ? cached.getOutputHash()
+                        : content != null ? Hashing.sha256(content) : hash));
+            }
+            metrics.record(Metrics.Phase.WRITE, time);
+        } catch (Exception e) {
+            Log.error("arpt: exception occurred: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Get the pruned content of the given values file in an archive for each
+     * target product, null for those nothing is removed for.
+     */
+    private @NonNull ByteBuffer[][] pruneArchivedValuesFile(@NonNull Path source) {
+        final long start = System.nanoTime();
+        final ByteBuffer[][] contents = new ByteBuffer[targets.size()][];
+        try {
+            long time = System.nanoTime();
+            final ByteBuffer buffer = ValuesFile.load(source);
+            time = metrics.record(Metrics.Phase.PARSE, time);
+            metrics.increment(Metrics.Counter.FILES_SCANNED);
+            metrics.add(Metrics.Counter.BYTES_READ, buffer.limit());
+
+            Log.info("arpt: pruning: {}", source);
+            final boolean asciiCompatible = ValuesFile.isAsciiCompatible(buffer);
+            ValuesFile valuesFile = null;
+            for (int i = 0; i < targets.size(); i++) {
+                final Target target = targets.get(i);
+                int count = 0;
+                if (asciiCompatible && !target.filter.matches(buffer) && !target.hasRedundantValues(source)) {
+                    Log.debug("arpt: {}no candidates found, skip parsing: {}", target.label, source);
+                } else if (asciiCompatible) {
+                    if (valuesFile == null) {
+                        valuesFile = ValuesFile.parse(buffer);
+                        time = metrics.record(Metrics.Phase.PARSE, time);
+                    }
+                    final List<ValuesFile.Entry> removed = findRemovedEntries(source, valuesFile, target);
+                    if (!removed.isEmpty()) {
+                        contents[i] = valuesFile.splice(removed);
+                    }
+                    count = removed.size();
+                } else {
+                    Log.debug("arpt: {}not an ASCII compatible encoding, fall back to DOM: {}", target.label,
+                            source);
+                    final Document document;
+                    try (InputStream in = Files.newInputStream(source)) {
+                        document = XmlUtils.parse(in);
+                    }
+                    time = metrics.record(Metrics.Phase.PARSE, time);
+                    count = removeResourcesFromDocument(source, document, target);
+                    if (count > 0) {
+                        contents[i] = new ByteBuffer[] { ByteBuffer.wrap(saveDocument(document)) };
+                    }
+                }
+                time = metrics.record(Metrics.Phase.TRANSFORM, time);
+                metrics.add(Metrics.Counter.ELEMENTS_REMOVED, count);
+                Log.info("arpt: {}{} resource(s) removed", target.label, count);
+            }
+        } catch (Exception e) {
+            Log.error("arpt: exception occurred: " + e.getMessage());
+        } finally {
+            metrics.recordFile(start);
+        }
+        return contents;
+    }
+
+    /**
+     * Makes the target file of the given output the pruned content of the
+     * source file from the cache, if it's there.
+     *
+     * @param types the resource types declared by the source file.
+     * @return the cache entry, or null if there is none.
+     */
+    private @Nullable OutputCache.Entry materialize(@NonNull Path source, @NonNull Output output,
+                                                   @NonNull Set<String> types, @NonNull String hash,
+                                                   boolean inPlace) throws IOException {
+        final OutputCache.Entry entry = cache.get(hash, output.target.getDigest(types, source));
+        if (entry == null) {
+            return null;
+        }
+        if (entry.getFile() == null) {
+            if (!inPlace) {
+                FileUtils.linkOrCopy(source, output.path);
+                metrics.increment(Metrics.Counter.FILES_LINKED);
+            }
+            return entry;
+        }
+        return cache.materialize(entry, output.path, inPlace) ? entry : null;
+    }
+
+    private static long remaining(@NonNull ByteBuffer[] buffers) {
+        long size = 0;
+        for (ByteBuffer buffer : buffers) {
+            size += buffer.remaining();
+        }
+        return size;
+    }
+
+    private static @Nullable Manifest.Stamp stampOf(@NonNull Path path) throws IOException {
+        return Files.isRegularFile(path) ? Manifest.Stamp.of(path) : null;
+    }
+
+    private static @NonNull Document parseDocument(@NonNull File xmlFile) throws Exception {
+        return XmlUtils.parse(xmlFile);
+    }
+
+    /**
+     * Get the entries of the given values file removed for the given target,
+     * including the redundant ones.
+     */
+    private @NonNull List<ValuesFile.Entry> findRemovedEntries(@NonNull Path source, @NonNull ValuesFile valuesFile,
+                                                              @NonNull Target target) {
+        final List<ValuesFile.Entry> removed = new ArrayList<>();
+        for (ValuesFile.Entry entry : valuesFile.getEntries()) {
+            if (target.index.contains(entry.getTag(), entry.getType(), entry.getName())) {
+                Log.info(() -> "arpt: " + target.label + "'@" + Resolver.describe(entry.getTag(), entry.getType())
+                        + "/" + entry.getName() + "' removed successfully");
+                removed.add(entry);
+            } else if (target.redundant != null && target.redundant.isRedundant(source, entry)) {
+                Log.info(() -> "arpt: " + target.label + "'@" + Resolver.describe(entry.getTag(), entry.getType())
+                        + "/" + entry.getName() + "' removed as identical to its fallback");
+                metrics.increment(Metrics.Counter.ELEMENTS_DEDUPED);
+                removed.add(entry);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes the elements of the given document removed for the given
+     * target, including the redundant ones, see {@link
+     * #findRemovedEntries(Path, ValuesFile, Target)}.
+     */
+    private int removeResourcesFromDocument(@NonNull Path source, @NonNull Document document,
+                                            @NonNull Target target) {
+        final List<Element> resNodes = new ArrayList<>();
+        final NodeList resources = document.getDocumentElement().getChildNodes();
+        for (int i = 0, length = resources.getLength(); i < length; i++) {
+            final Node node = resources.item(i);
+            if (node.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+            final Element resNode = (Element) node;
+            final String tag = resNode.getTagName();
+            final String type = getType(resNode);
+            final String name = resNode.getAttribute("name");
+            if (target.index.contains(tag, type, name)) {
+                Log.info(() -> "arpt: " + target.label + "'@" + Resolver.describe(tag, type)
+                        + "/" + name + "' removed successfully");
+                resNodes.add(resNode);
+            } else if (target.redundant != null && target.redundant.isRedundant(source, tag, type, name)) {
+                Log.info(() -> "arpt: " + target.label + "'@" + Resolver.describe(tag, type)
+                        + "/" + name + "' removed as identical to its fallback");
+                metrics.increment(Metrics.Counter.ELEMENTS_DEDUPED);
+                resNodes.add(resNode);
+            }
+        }
+
+        for (Element resNode : resNodes) {
+            resNode.getParentNode().removeChild(resNode);
+        }
+        return resNodes.size();
+    }
+
+    private static @Nullable String getType(@NonNull Element element) {
+        return element.hasAttribute("type") ? element.getAttribute("type") : null;
+    }
+
+    private static @NonNull byte[] saveDocument(@NonNull Document document) throws Exception {
+        document.setXmlStandalone(document.getXmlStandalone());
+        document.setXmlVersion(document.getXmlVersion());
+        return XmlUtils.serialize(document);
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2022 Tony Guo. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jxtras.android.build.tools.arpt;
+
+import jxtras.android.build.tools.annotation.NonNull;
+import jxtras.android.build.tools.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The {@code @type/name} references between the resources of one or more
+ * resource directories, used to also remove resources which are only
+ * referenced by removed resources.
+ * <p>
+ * The graph is built from the files of the {@link ResourceIndex}: values files
+ * are tokenized by {@link ValuesFile} so that references are attributed to the
+ * value resource they appear in, while any other XML file is a resource of its
+ * own. Files are scanned concurrently at the byte level, no file is parsed
+ * into a DOM.
+ * <p>
+ * A resource is only removed along with its referrers if it has at least one
+ * referrer and all of them are removed, resources which are not referenced at
+ * all are left alone. References from code or from other modules can't be
+ * seen, so this is an opt-in.
+ */
+public class ReferenceGraph {
+
+    private static final Pattern REFERENCE = Pattern.compile("@\\*?(?:([\\w.]+):)?([a-z][a-z-]*)/([\\w.]+)");
+    private static final Pattern PARENT = Pattern.compile("\\sparent\\s*=\\s*[\"']([\\w.]*)[\"']");
+    private static final String STYLE = "style";
+
+    private final List<ResourceIndex> resources;
+    private final Map<String, Node> nodes = new HashMap<>();
+    private final List<Path> failed = new ArrayList<>();
+
+    private ReferenceGraph(@NonNull List<ResourceIndex> resources) {
+        this.resources = resources;
+    }
+
+    /**
+     * A resource, identified by the type and name it is referenced by, with
+     * all its declarations across configurations.
+     */
+    private static final class Node {
+        final String key;
+        /** The value resources declaring it, as resource type to names */
+        final Map<String, Set<String>> values = new TreeMap<>();
+        /** The files declaring it */
+        final Set<Path> files = new HashSet<>();
+        /** The type and name of the files declaring it, e.g. {@code drawable/icon} */
+        String filePath;
+        /** Set for the references of files which can't be tokenized, never removed */
+        boolean pinned;
+        /** How it's logged, e.g. {@code @string-array/names}, taken from its first declaration */
+        String label;
+        final Set<Node> references = new LinkedHashSet<>();
+        final Set<Node> referrers = new LinkedHashSet<>();
+
+        Node(@NonNull String key) {
+            this.key = key;
+        }
+
+        @NonNull String getLabel() {
+            if (label != null) {
+                return label;
+            }
+            return key.startsWith("#") ? key.substring(1) : "@" + key;
+        }
+
+        boolean isRemovable() {
+            if (pinned || (values.isEmpty() && files.isEmpty())) {
+                return false;
+            }
+            for (String resourceType : values.keySet()) {
+                final Resolver resolver = Resolver.get(resourceType);
+                if (resolver == null || !resolver.isValueResource()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The declarations and references found in a single file.
+     */
+    private static final class Scan {
+        /** The key, resource type, name and label of each value resource, or the key of the file */
+        final List<String[]> declarations = new ArrayList<>();
+        /** The key of the referrer and of the resource referenced */
+        final List<String[]> references = new ArrayList<>();
+        boolean pinned;
+        boolean failed;
+    }
+
+    /**
+     * Scans all files of the given resource directories for references.
+     *
+     * @param runner runs the given scanning tasks, possibly concurrently.
+     */
+    public static @NonNull ReferenceGraph build(@NonNull List<ResourceIndex> resources,
+                                                @NonNull Consumer<List<Runnable>> runner) {
+        final ReferenceGraph graph = new ReferenceGraph(resources);
+        final List<Path> files = new ArrayList<>();
+        final List<Runnable> tasks = new ArrayList<>();
+        final List<Scan> scans = new ArrayList<>();
+        for (ResourceIndex resource : resources) {
+            for (String dirName : resource.getDirNames()) {
+                for (Path file : resource.getFiles(dirName)) {
+                    final Scan scan = new Scan();
+                    final boolean values = resource.isValuesFile(file);
+                    files.add(file);
+                    scans.add(scan);
+                    tasks.add(() -> scan(file, dirName, values, scan));
+                }
+            }
+        }
+        runner.accept(tasks);
+
+        for (int i = 0; i < files.size(); i++) {
+            final Path file = files.get(i);
+            final Scan scan = scans.get(i);
+            if (scan.failed) {
+                graph.failed.add(file);
+                continue;
+            }
+            if (scan.pinned) {
+                graph.node("#" + file).pinned = true;
+            }
+            for (String[] declaration : scan.declarations) {
+                final Node node = graph.node(declaration[0]);
+                if (declaration.length == 1) {
+                    node.files.add(file);
+                    node.filePath = declaration[0];
+                } else {
+                    node.values.computeIfAbsent(declaration[1], type -> new TreeSet<>()).add(declaration[2]);
+                    if (node.label == null) {
+                        node.label = declaration[3];
+                    }
+                }
+            }
+            for (String[] reference : scan.references) {
+                final Node referrer = graph.node(reference[0]);
+                final Node referenced = graph.node(reference[1]);
+                if (referrer != referenced) {
+                    referrer.references.add(referenced);
+                    referenced.referrers.add(referrer);
+                }
+            }
+        }
+        return graph;
+    }
+
+    private @NonNull Node node(@NonNull String key) {
+        return nodes.computeIfAbsent(key, Node::new);
+    }
+
+    private static void scan(@NonNull Path file, @NonNull String dirName, boolean values, @NonNull Scan scan) {
+        try {
+            final String fileName = file.getFileName().toString();
+            if (values) {
+                final ByteBuffer buffer = ValuesFile.load(file);
+                final ValuesFile valuesFile = ValuesFile.parse(buffer);
+                if (valuesFile == null) {
+                    Log.debug("arpt: not an ASCII compatible encoding, keeping all references of: {}", file);
+                    scan.pinned = true;
+                    findReferences("#" + file, decode(buffer, 0, buffer.limit()), scan);
+                    return;
+                }
+                for (ValuesFile.Entry entry : valuesFile.getEntries()) {
+                    if (entry.getName().isEmpty()) {
+                        continue;
+                    }
+                    final Resolver resolver = Resolver.of(entry.getTag(), entry.getType());
+                    final String resourceType = resolver != null ? resolver.getResourceType()
+                            : entry.getType() != null ? entry.getType() : entry.getTag();
+                    final String key = key(resolver != null ? resolver.getType() : resourceType, entry.getName());
+                    scan.declarations.add(new String[] { key, resourceType, entry.getName(),
+                            "@" + Resolver.describe(entry.getTag(), entry.getType()) + "/" + entry.getName() });
+                    final String text = decode(buffer, entry.getStart(), entry.getEnd());
+                    findReferences(key, text, scan);
+                    if (STYLE.equals(entry.getTag())) {
+                        findParent(key, entry.getName(), text, scan);
+                    }
+                }
+            } else if (!dirName.startsWith("values")) {
+                final int dash = dirName.indexOf('-');
+                final int dot = fileName.indexOf('.');
+                final String key = key(dash > 0 ? dirName.substring(0, dash) : dirName,
+                        dot > 0 ? fileName.substring(0, dot) : fileName);
+                scan.declarations.add(new String[] { key });
+                if (fileName.endsWith(".xml")) {
+                    final ByteBuffer buffer = ValuesFile.load(file);
+                    findReferences(key, decode(buffer, 0, buffer.limit()), scan);
+                }
+            }
+        } catch (IOException e) {
+            Log.warn("arpt: failed to scan references: " + file + ": " + e.getMessage());
+            scan.failed = true;
+        }
+    }
+
+    private static void findReferences(@NonNull String key, @NonNull String text, @NonNull Scan scan) {
+        final Matcher matcher = REFERENCE.matcher(text);
+        while (matcher.find()) {
+            if (!"android".equals(matcher.group(1))) {
+                scan.references.add(new String[] { key, key(matcher.group(2), matcher.group(3)) });
+            }
+        }
+    }
+
+    /**
+     * Adds the reference of a style to its parent, which is given by name
+     * either explicitly or by the prefix of its own name.
+     */
+    private static void findParent(@NonNull String key, @NonNull String name, @NonNull String text,
+                                   @NonNull Scan scan) {
+        final int end = text.indexOf('>');
+        final Matcher matcher = PARENT.matcher(end > 0 ? text.substring(0, end) : text);
+        String parent = null;
+        if (matcher.find()) {
+            parent = matcher.group(1);
+        } else if (name.lastIndexOf('.') > 0) {
+            parent = name.substring(0, name.lastIndexOf('.'));
+        }
+        if (parent != null && !parent.isEmpty()) {
+            scan.references.add(new String[] { key, key(STYLE, parent) });
+        }
+    }
+
+    /**
+     * Resources are referenced with the dots in their names replaced by
+     * underscores or not, both refer to the same resource.
+     */
+    private static @NonNull String key(@NonNull String type, @NonNull String name) {
+        return type + "/" + name.replace('.', '_');
+    }
+
+    private static @NonNull String decode(@NonNull ByteBuffer buffer, int start, int end) {
+        final byte[] bytes = new byte[end - start];
+        final ByteBuffer slice = buffer.duplicate();
+        slice.limit(end).position(start);
+        slice.get(bytes);
+        return new String(bytes, getCharset(bytes));
+    }
+
+    /**
+     * Get the charset to search for references in, only UTF-16 needs to be
+     * decoded as such since references are plain ASCII.
+     */
+    private static @NonNull Charset getCharset(@NonNull byte[] bytes) {
+        if (bytes.length >= 2) {
+            final int b0 = bytes[0] & 0xff;
+            final int b1 = bytes[1] & 0xff;
+            if ((b0 == 0xfe && b1 == 0xff) || (b0 == 0xff && b1 == 0xfe)) {
+                return StandardCharsets.UTF_16;
+            } else if (b0 == 0) {
+                return StandardCharsets.UTF_16BE;
+            } else if (b1 == 0) {
+                return StandardCharsets.UTF_16LE;
+            }
+        }
+        return StandardCharsets.ISO_8859_1;
+    }
+
+    /**
+     * Returns a copy of the given index which also removes all resources whose
+     * referrers are all removed, repeatedly until no more resources are
+     * found. The index is returned as is if any file failed to be scanned.
+     *
+     * @param label prepended to the log of the resources found.
+     */
+    public @NonNull RemovalIndex expand(@NonNull RemovalIndex index, @NonNull String label) {
+        if (!failed.isEmpty()) {
+            Log.warn("arpt: " + label + failed.size() + " file(s) failed to be scanned for references, "
+                    + "skip removing resources transitively");
+            return index;
+        }
+
+        final Set<Path> removedFiles = new HashSet<>();
+        for (String path : index.getResourceNames(Resolver.FILE.getResourceType())) {
+            for (ResourceIndex resource : resources) {
+                removedFiles.addAll(resource.findFiles(path));
+            }
+        }
+        final Set<Node> removed = new HashSet<>();
+        final Deque<Node> queue = new ArrayDeque<>();
+        for (Node node : new TreeMap<>(nodes).values()) {
+            if (isRemoved(node, index, removedFiles)) {
+                removed.add(node);
+                queue.add(node);
+            }
+        }
+
+        final Map<String, Set<String>> additions = new TreeMap<>();
+        int count = 0;
+        while (!queue.isEmpty()) {
+            final Node node = queue.poll();
+            for (Node referenced : node.references) {
+                if (removed.contains(referenced) || !referenced.isRemovable()
+                        || !removed.containsAll(referenced.referrers)) {
+                    continue;
+                }
+                removed.add(referenced);
+                queue.add(referenced);
+                count++;
+                Log.info(() -> {
+                    final StringJoiner referrers = new StringJoiner(", ");
+                    for (Node referrer : referenced.referrers) {
+                        referrers.add(referrer.getLabel());
+                    }
+                    return "arpt: " + label + "transitively removing: " + referenced.getLabel()
+                            + " (only referenced by " + referrers + ")";
+                });
+                for (Map.Entry<String, Set<String>> entry : referenced.values.entrySet()) {
+                    additions.computeIfAbsent(entry.getKey(), type -> new TreeSet<>()).addAll(entry.getValue());
+                }
+                if (referenced.filePath != null) {
+                    additions.computeIfAbsent(Resolver.FILE.getResourceType(), type -> new TreeSet<>())
+                            .add(referenced.filePath);
+                }
+            }
+        }
+        Log.info("arpt: " + label + count + " resource(s) only referenced by removed resources");
+        return count > 0 ? index.plus(additions) : index;
+    }
+
+    /**
+     * Returns whether all declarations of the given resource are removed by
+     * the index.
+     */
+    private static boolean isRemoved(@NonNull Node node, @NonNull RemovalIndex index,
+                                     @NonNull Set<Path> removedFiles) {
+        if (node.pinned || (node.values.isEmpty() && node.files.isEmpty())) {
+            return false;
+        }
+        for (Map.Entry<String, Set<String>> entry : node.values.entrySet()) {
+            final Resolver resolver = Resolver.get(entry.getKey());
+            for (String name : entry.getValue()) {
+                if (!index.contains(entry.getKey(), name)
+                        && !(resolver != null && index.contains(resolver.getType(), name))) {
+                    return false;
+                }
+            }
+        }
+        return removedFiles.containsAll(node.files);
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2022 Tony Guo. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jxtras.android.build.tools.arpt;
+
+import jxtras.android.build.tools.annotation.NonNull;
+import jxtras.android.build.tools.annotation.Nullable;
+import jxtras.android.build.tools.util.Hashing;
+import jxtras.android.build.tools.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The effective set of resources to be removed for a single target product,
+ * grouped by resource type (e.g. {@code string} -> names), together with the
+ * configurations the target product keeps.
+ * <p>
+ * All rules are folded into one index up front so that every resource file
+ * only needs to be visited once, no matter how many rules there are.
+ */
+public class RemovalIndex {
+
+    /**
+     * The resources of a rule kept by the target product, since it matches
+     * the availability of the rule.
+     */
+    private static final class Skip {
+        final String availability;
+        final String resourceType;
+        final Set<String> names;
+        final Set<String> patterns;
+
+        Skip(@NonNull String availability, @NonNull String resourceType, @NonNull Set<String> names,
+             @NonNull Set<String> patterns) {
+            this.availability = availability;
+            this.resourceType = resourceType;
+            this.names = new TreeSet<>(names);
+            this.patterns = new TreeSet<>(patterns);
+        }
+    }
+
+    private final Map<String, Set<String>> resourceNames = new TreeMap<>();
+    /** The name patterns of resources to be removed, by resource type */
+    private final Map<String, Set<String>> patterns = new TreeMap<>();
+    /** The matcher of the patterns of each resource type, see {@link #compileMatchers()} */
+    private final Map<String, NameMatcher> matchers = new TreeMap<>();
+    /** The configurations kept, or null if all are kept */
+    private Set<String> configs;
+    /** The resources kept by rules of the target product, in the order of the rules */
+    private final List<Skip> skipped = new ArrayList<>();
+    private volatile String digest;
+    /** The digests of the resources to be removed of some resource types, see {@link #getDigest(Set)} */
+    private final Map<Set<String>, String> digests = new ConcurrentHashMap<>();
+
+    private RemovalIndex() {
+    }
+
+    /**
+     * Get the names of resources of the given type to be removed.
+     */
+    public @NonNull Set<String> getResourceNames(@NonNull String resourceType) {
+        final Set<String> names = resourceNames.get(resourceType);
+        return names != null ? Collections.unmodifiableSet(names) : Collections.<String>emptySet();
+    }
+
+    /**
+     * Get the name patterns of resources of the given type to be removed, see
+     * {@link NameMatcher}.
+     */
+    public @NonNull Set<String> getPatterns(@NonNull String resourceType) {
+        final Set<String> result = patterns.get(resourceType);
+        return result != null ? Collections.unmodifiableSet(result) : Collections.<String>emptySet();
+    }
+
+    /**
+     * Get all resource types which have at least one resource to be removed.
+     */
+    public @NonNull Set<String> getResourceTypes() {
+        if (patterns.isEmpty()) {
+            return Collections.unmodifiableSet(resourceNames.keySet());
+        }
+        final Set<String> result = new TreeSet<>(resourceNames.keySet());
+        result.addAll(patterns.keySet());
+        return result;
+    }
+
+    /**
+     * Returns whether the resource of the given type and name is to be removed,
+     * either by its name or by a pattern matching it.
+     */
+    public boolean contains(@NonNull String resourceType, @NonNull String name) {
+        final Set<String> names = resourceNames.get(resourceType);
+        if (names != null && names.contains(name)) {
+            return true;
+        }
+        final NameMatcher matcher = matchers.get(resourceType);
+        return matcher != null && matcher.matches(name);
+    }
+
+    /**
+     * Returns whether the value resource declared by an element with the given
+     * tag, {@code type} attribute and name is to be removed, either by a rule
+     * of its tag or of its resource type, see {@link Resolver#of(String, String)}.
+     */
+    public boolean contains(@NonNull String tag, @Nullable String type, @NonNull String name) {
+        if (contains(tag, name)) {
+            return true;
+        }
+        final Resolver resolver = Resolver.of(tag, type);
+        return resolver != null && (contains(resolver.getResourceType(), name) || contains(resolver.getType(), name));
+    }
+
+    /**
+     * Get the configurations (e.g. locales and densities) kept by the target
+     * product, or null if it keeps all of them.
+     */
+    public @Nullable Set<String> getConfigs() {
+        return configs != null ? Collections.unmodifiableSet(configs) : null;
+    }
+
+    public boolean isEmpty() {
+        return resourceNames.isEmpty() && patterns.isEmpty() && configs == null;
+    }
+
+    /**
+     * Returns a copy of this index which also removes the given resources,
+     * grouped by resource type.
+     */
+    public @NonNull RemovalIndex plus(@NonNull Map<String, Set<String>> resources) {
+        final RemovalIndex index = new RemovalIndex();
+        for (Map.Entry<String, Set<String>> entry : resourceNames.entrySet()) {
+            index.resourceNames.put(entry.getKey(), new HashSet<>(entry.getValue()));
+        }
+        for (Map.Entry<String, Set<String>> entry : resources.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                index.resourceNames.computeIfAbsent(entry.getKey(), t -> new HashSet<>()).addAll(entry.getValue());
+            }
+        }
+        for (Map.Entry<String, Set<String>> entry : patterns.entrySet()) {
+            index.patterns.put(entry.getKey(), new HashSet<>(entry.getValue()));
+        }
+        index.matchers.putAll(matchers);
+        index.configs = configs != null ? new HashSet<>(configs) : null;
+        index.skipped.addAll(skipped);
+        return index;
+    }
+
+    /**
+     * Get the SHA-256 digest of this index, which only depends on the
+     * resources to be removed, not on the rules they came from.
+     */
+    public @NonNull String getDigest() {
+        String result = digest;
+        if (result == null) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                writeResources(out);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            digest = result = Hashing.sha256(bytes.toByteArray());
+        }
+        return result;
+    }
+
+    /**
+     * Get the SHA-256 digest of the resources of the given types to be
+     * removed, e.g. of the types declared by a values file, whose pruned
+     * content only depends on its own content and this digest.
+     */
+    public @NonNull String getDigest(@NonNull Set<String> resourceTypes) {
+        return digests.computeIfAbsent(resourceTypes, types -> {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                for (String resourceType : new TreeSet<>(types)) {
+                    final Set<String> names = resourceNames.get(resourceType);
+                    final Set<String> typePatterns = patterns.get(resourceType);
+                    if (names == null && typePatterns == null) {
+                        continue;
+                    }
+                    out.writeUTF(resourceType);
+                    writeSet(out, names);
+                    writeSet(out, typePatterns);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return Hashing.sha256(bytes.toByteArray());
+        });
+    }
+
+    private static void writeSet(@NonNull DataOutput out, @Nullable Set<String> set) throws IOException {
+        out.writeInt(set != null ? set.size() : 0);
+        if (set != null) {
+            for (String name : new TreeSet<>(set)) {
+                out.writeUTF(name);
+            }
+        }
+    }
+
+    /**
+     * Writes this index in a compact binary form, see {@link #readFrom(DataInput)}.
+     */
+    public void writeTo(@NonNull DataOutput out) throws IOException {
+        writeResources(out);
+        out.writeInt(skipped.size());
+        for (Skip skip : skipped) {
+            out.writeUTF(skip.availability);
+            out.writeUTF(skip.resourceType);
+            writeSet(out, skip.names);
+            writeSet(out, skip.patterns);
+        }
+    }
+
+    private void writeResources(@NonNull DataOutput out) throws IOException {
+        writeNames(out, resourceNames);
+        writeNames(out, patterns);
+        out.writeInt(configs != null ? configs.size() : -1);
+        if (configs != null) {
+            for (String config : new TreeSet<>(configs)) {
+                out.writeUTF(config);
+            }
+        }
+    }
+
+    /**
+     * Reads an index written by {@link #writeTo(DataOutput)}.
+     */
+    public static @NonNull RemovalIndex readFrom(@NonNull DataInput in) throws IOException {
+        final RemovalIndex index = new RemovalIndex();
+        readNames(in, index.resourceNames);
+        readNames(in, index.patterns);
+        final int configs = in.readInt();
+        if (configs >= 0) {
+            index.configs = new HashSet<>(configs * 2);
+            for (int i = 0; i < configs; i++) {
+                index.configs.add(in.readUTF());
+            }
+        }
+        for (int i = 0, skips = in.readInt(); i < skips; i++) {
+            final String availability = in.readUTF();
+            final String resourceType = in.readUTF();
+            index.skipped.add(new Skip(availability, resourceType, readSet(in), readSet(in)));
+        }
+        index.compileMatchers();
+        return index;
+    }
+
+    private static void writeNames(@NonNull DataOutput out, @NonNull Map<String, Set<String>> names)
+            throws IOException {
+        out.writeInt(names.size());
+        for (Map.Entry<String, Set<String>> entry : names.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue().size());
+            for (String name : new TreeSet<>(entry.getValue())) {
+                out.writeUTF(name);
+            }
+        }
+    }
+
+    private static @NonNull Set<String> readSet(@NonNull DataInput in) throws IOException {
+        final int count = in.readInt();
+        final Set<String> set = new TreeSet<>();
+        for (int i = 0; i < count; i++) {
+            set.add(in.readUTF());
+        }
+        return set;
+    }
+
+    private static void readNames(@NonNull DataInput in, @NonNull Map<String, Set<String>> names)
+            throws IOException {
+        for (int i = 0, types = in.readInt(); i < types; i++) {
+            final String resourceType = in.readUTF();
+            final int count = in.readInt();
+            final Set<String> set = new HashSet<>(count * 2);
+            for (int j = 0; j < count; j++) {
+                set.add(in.readUTF());
+            }
+            names.put(resourceType, set);
+        }
+    }
+
+    /**
+     * Folds the given rules into a single index for the target product. The
+     * configurations of all {@code config} rules matching the target product
+     * are kept together.
+     */
+    public static @NonNull RemovalIndex build(@NonNull List<Rule> rules, @NonNull String targetProduct) {
+        final RemovalIndex index = new RemovalIndex();
+        for (Rule rule : rules) {
+            final String resourceType = rule.getResourceType();
+            final String availability = rule.getAvailability();
+            final Set<String> names = rule.getResourceNames();
+            final Set<String> rulePatterns = rule.getPatterns();
+            if (Rule.CONFIG.equals(resourceType)) {
+                if (rule.isAvailableTo(targetProduct)) {
+                    if (index.configs == null) {
+                        index.configs = new HashSet<>();
+                    }
+                    index.configs.addAll(names);
+                }
+                continue;
+            }
+            if (Resolver.get(resourceType) == null) {
+                Log.warn("arpt: resource type '" + resourceType + "' not supported, skip removing "
+                        + (names.size() + rulePatterns.size()) + " resource(s)");
+                continue;
+            }
+            if (!rule.isAvailableTo(targetProduct)) {
+                if (!names.isEmpty()) {
+                    index.resourceNames.computeIfAbsent(resourceType, t -> new HashSet<>()).addAll(names);
+                }
+                if (!rulePatterns.isEmpty()) {
+                    index.patterns.computeIfAbsent(resourceType, t -> new HashSet<>()).addAll(rulePatterns);
+                }
+            } else {
+                index.skipped.add(new Skip(availability, resourceType, names, rulePatterns));
+            }
+        }
+        index.compileMatchers();
+        return index;
+    }
+
+    /**
+     * Logs the resources the target product keeps since it matches the
+     * availability of their rules. Indexes are shared by requests, so this is
+     * logged by each request rather than when building the index.
+     */
+    public void logSkipped(@NonNull String targetProduct) {
+        for (Skip skip : skipped) {
+            Log.info("arpt: target '{}' matches with regex '{}', skip removing the following resources:",
+                    targetProduct, skip.availability);
+            for (String name : skip.names) {
+                Log.info("    @{}/{}", skip.resourceType, name);
+            }
+            for (String pattern : skip.patterns) {
+                Log.info("    @{}/{} (pattern)", skip.resourceType, pattern);
+            }
+        }
+    }
+
+    /**
+     * Compiles the patterns of each resource type into its matcher up front,
+     * so that looking up a resource never fails. Patterns making the matcher
+     * of their type too complex are warned about and dropped, the ones before
+     * them in sort order are kept.
+     */
+    private void compileMatchers() {
+        final Iterator<Map.Entry<String, Set<String>>> types = patterns.entrySet().iterator();
+        while (types.hasNext()) {
+            final Map.Entry<String, Set<String>> entry = types.next();
+            final String resourceType = entry.getKey();
+            try {
+                matchers.put(resourceType, NameMatcher.compile(entry.getValue()));
+                continue;
+            } catch (IllegalArgumentException e) {
+                Log.warn("arpt: " + e.getMessage() + " for resource type '" + resourceType + "'");
+            }
+            final Set<String> kept = new TreeSet<>();
+            for (String pattern : new TreeSet<>(entry.getValue())) {
+                kept.add(pattern);
+                try {
+                    matchers.put(resourceType, NameMatcher.compile(kept));
+                } catch (IllegalArgumentException e) {
+                    kept.remove(pattern);
+                    Log.warn("arpt: skip removing @" + resourceType + "/" + pattern + " (pattern)");
+                }
+            }
+            if (kept.isEmpty()) {
+                types.remove();
+            } else {
+                entry.getValue().retainAll(kept);
+            }
+        }
+    }
+}
@@ -16,170 +16,125 @@
 package jxtras.android.build.tools.arpt;
 
 import jxtras.android.build.tools.annotation.Nullable;
-import jxtras.android.build.tools.util.Log;
 import jxtras.android.build.tools.annotation.NonNull;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import java.io.File;
-import java.io.FileFilter;
-import java.io.FileOutputStream;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.Set;
-import java.util.WeakHashMap;
 
+/**
+ * Resource types supported by arpt.
+ * <p>
+ * Value resources are declared as children of {@code <resources>} in the
+ * {@code values*} directories and are all removed within the same pass over
+ * each XML file (see {@link Pruner}); file resources are removed as a whole.
+ * <p>
+ * Each value resource type is matched by the tag of its element, e.g.
+ * {@code <dimen>}, as well as by {@code <item type="...">} elements of that
+ * type. The tags of the array types all declare resources of type
+ * {@code array}, so an {@code array} rule matches any of them.
+ */
 public enum Resolver {
-    STRING("string") {
-        @Override
-        public void remove(@NonNull File resDir, @NonNull Set<String> resNames) {
-            final File[] valuesDirs = resDir.listFiles(VALUES_DIR_FILTER);
-            if (valuesDirs != null) {
-                Arrays.stream(valuesDirs).forEach(dir -> {
-                    File[] xmlFiles = dir.listFiles(XML_FILE_FILTER);
-                    if (xmlFiles != null) {
-                        Arrays.stream(xmlFiles).forEach(file -> {
-                            removeResourcesFromFile(file, getResourceType(), resNames);
-                        });
-                    }
-                });
-            }
-        }
-    },
-    STRING_ARRAY("string-array") {
-        @Override
-        public void remove(@NonNull File resDir, @NonNull Set<String> resNames) {
-            STRING.remove(resDir, resNames);
-        }
-    },
-    PLURALS("plurals") {
-        @Override
-        public void remove(@NonNull File resDir, @NonNull Set<String> resNames) {
-            STRING.remove(resDir, resNames);
-        }
-    },
+    STRING("string"),
+    STRING_ARRAY("string-array", "array"),
+    INTEGER_ARRAY("integer-array", "array"),
+    ARRAY("array"),
+    PLURALS("plurals"),
+    DIMEN("dimen"),
+    COLOR("color"),
+    BOOL("bool"),
+    INTEGER("integer"),
+    FRACTION("fraction"),
+    STYLE("style"),
+    DRAWABLE("drawable"),
+    ID("id"),
+    ATTR("attr"),
+    DECLARE_STYLEABLE("declare-styleable", "styleable"),
+    // only declared as <item type="...">, e.g. aliases of file resources
+    ANIM("anim"),
+    ANIMATOR("animator"),
+    FONT("font"),
+    INTERPOLATOR("interpolator"),
+    LAYOUT("layout"),
+    MENU("menu"),
+    MIPMAP("mipmap"),
+    RAW("raw"),
+    TRANSITION("transition"),
+    XML("xml"),
     FILE("file") {
         @Override
-        public void remove(@NonNull File resDir, @NonNull Set<String> resNames) {
-            removeFilesInDirectory(resDir, resNames);
+        public boolean isValueResource() {
+            return false;
         }
     };
 
-    private static final FileFilter DIR_FILTER = File::isDirectory;
-    private static final FileFilter XML_FILE_FILTER = file -> file.getName().endsWith(".xml") && !DIR_FILTER.accept(file);
-    private static final FileFilter VALUES_DIR_FILTER = file -> DIR_FILTER.accept(file) && file.getName().startsWith("values");
+    private static final String ITEM = "item";
 
-    private static final Map<String, Resolver> resolvers = new WeakHashMap<>(5);
+    private static final Map<String, Resolver> resolvers = new HashMap<>();
+
+    static {
+        for (Resolver resolver : values()) {
+            resolvers.put(resolver.resourceType, resolver);
+        }
+    }
 
     private final String resourceType;
+    private final String type;
 
     Resolver(@NonNull String resourceType) {
+        this(resourceType, resourceType);
+    }
+
+    Resolver(@NonNull String resourceType, @NonNull String type) {
         this.resourceType = resourceType;
+        this.type = type;
     }
 
+    /**
+     * Get the resource type as used in rules, which is the tag of the
+     * elements declaring resources of this type.
+     */
     public @NonNull String getResourceType() {
         return resourceType;
     }
 
-    public static @Nullable
-    Resolver get(@NonNull String resourceType) {
-        synchronized(resolvers) {
-            return resolvers.computeIfAbsent(resourceType, s -> {
-                for (Resolver resource : Resolver.values()) {
-                    if (resource.resourceType.equals(s)) {
-                        return resource;
-                    }
-                }
-                return null;
-            });
-        }
+    /**
+     * Get the type resources of this type are referenced by, e.g.
+     * {@code array} for {@code @array/name}.
+     */
+    public @NonNull String getType() {
+        return type;
     }
 
-    protected abstract void remove(@NonNull File resDir, @NonNull Set<String> resNames);
-
-    private static void removeFilesInDirectory(@NonNull File resDir, @NonNull Set<String> filePaths) {
-        int count = 0;
-        for (String path : filePaths) {
-            File file = new File(resDir, path);
-            Log.info("arpt: removing: " + file);
-            if (file.exists() && file.isFile()) {
-                if (!file.delete()) {
-                    Log.info("arpt: failed");
-                } else {
-                    count++;
-                    Log.info("arpt: file removed successfully");
-                }
-            } else {
-                Log.info("arpt: file does not exist");
-            }
-        }
-        Log.info("arpt: " + count + "/" + filePaths.size() + " file(s) removed");
+    /**
+     * Returns whether resources of this type are declared in {@code values*}
+     * XML files rather than being files on their own.
+     */
+    public boolean isValueResource() {
+        return true;
     }
 
-    private static void removeResourcesFromFile(@NonNull File xmlFile, @NonNull String resourceType, @NonNull Set<String> resNames) {
-        Log.info("arpt: pruning: " + xmlFile);
-        final List<Element> resNodes = new ArrayList<>();
-        try {
-            final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-            final DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
-            final Document document = documentBuilder.parse(xmlFile);
-
-            final NodeList resources = document.getElementsByTagName(resourceType);
-            if (resources == null || resources.getLength() == 0) {
-                Log.info("arpt: resource(s) of type '" + resourceType + "' not found");
-                return;
-            }
-
-            for (int i = 0, length = resources.getLength(); i < length; i++) {
-                final Element resNode = (Element) resources.item(i);
-                final String name = resNode.getAttribute("name");
-                if (name != null && resNames.contains(name)) {
-                    resNodes.add(resNode);
-                }
-            }
-
-            if (!resNodes.isEmpty()) {
-                for (Element resNode : resNodes) {
-                    Log.info("arpt: '@" + resNode.getTagName() + "/" + resNode.getAttribute("name")
-                            + "' removed successfully");
-                    resNode.getParentNode().removeChild(resNode);
-                }
-                saveDocument(document, xmlFile);
-            }
-        } catch (Exception e) {
-            Log.error("arpt: exception occurred: " + e.getMessage());
-        }
-        Log.info("arpt: " + resNodes.size() + " resource(s) removed");
+    public static @Nullable
+    Resolver get(@NonNull String resourceType) {
+        return resolvers.get(resourceType);
     }
 
-    private static void saveDocument(@NonNull Document document, @NonNull File xmlFile) {
-        try (FileOutputStream fos = new FileOutputStream(xmlFile)) {
-            document.setXmlStandalone(document.getXmlStandalone());
-            document.setXmlVersion(document.getXmlVersion());
+    /**
+     * Get the resolver of a value resource element with the given tag and
+     * {@code type} attribute, which is only taken into account for
+     * {@code <item>} elements.
+     *
+     * @return the resolver, or null if the element is of no supported type.
+     */
+    public static @Nullable Resolver of(@NonNull String tag, @Nullable String type) {
+        final Resolver resolver = resolvers.get(ITEM.equals(tag) && type != null ? type : tag);
+        return resolver != null && resolver.isValueResource() ? resolver : null;
+    }
 
-            TransformerFactory transformerFactory = TransformerFactory.newInstance();
-            Transformer transformer = transformerFactory.newTransformer();
-            transformer.setOutputProperty(OutputKeys.METHOD, "xml");
-            transformer.setOutputProperty(OutputKeys.ENCODING, "utf-8");
-            //            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-            transformer.setOutputProperty(OutputKeys.INDENT, "no");
-            //            out.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>".getBytes(StandardCharsets.UTF_8));
-            //            out.write(System.lineSeparator().getBytes(StandardCharsets.UTF_8));
-            DOMSource domSource = new DOMSource(document);
-            StreamResult streamResult = new StreamResult(fos);
-            transformer.transform(domSource, streamResult);
-        } catch (Exception e) {
-            Log.error("arpt: exception occurred: " + e.getMessage());
-        }
+    /**
+     * Get the type a value resource element is logged with, which is its tag
+     * unless it is an {@code <item>} of some type.
+     */
+    public static @NonNull String describe(@NonNull String tag, @Nullable String type) {
+        return ITEM.equals(tag) && type != null ? type : tag;
     }
 }
@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2022 Tony Guo. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jxtras.android.build.tools.arpt;
+
+import jxtras.android.build.tools.annotation.NonNull;
+import jxtras.android.build.tools.annotation.Nullable;
+import jxtras.android.build.tools.util.Hashing;
+import jxtras.android.build.tools.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * The files of a resource directory, collected by a single walk of the
+ * directory tree.
+ * <p>
+ * Files can be looked up by the directory they are in (e.g. {@code values-fr}
+ * or {@code drawable-hdpi}), by their resource path relative to the resource
+ * directory and by their base name, without listing directories or checking
+ * files one by one. The size and modification time of every file are taken
+ * from the walk as well. Which values files declare a value resource, and the
+ * hashes of files and of value resources, are only worked out when asked for
+ * the first time, and then shared by all target products.
+ */
+public class ResourceIndex {
+
+    private final Path resDir;
+    private final List<Path> files = new ArrayList<>();
+    private final Map<Path, Manifest.Stamp> stamps = new HashMap<>();
+    private final Map<String, List<Path>> dirs = new TreeMap<>();
+    private final Map<String, Path> resourcePaths = new HashMap<>();
+    private final Map<String, List<Path>> baseNames = new HashMap<>();
+    private final List<Path> skippedDirs = new ArrayList<>();
+    private volatile Map<String, List<Path>> declarations;
+    private final Map<Path, String> contentHashes = new ConcurrentHashMap<>();
+    private final Map<Path, Map<String, String>> valueHashes = new ConcurrentHashMap<>();
+    /** Stands for values files which can't be tokenized in {@link #valueHashes} */
+    private static final Map<String, String> UNKNOWN = new HashMap<>();
+
+    private ResourceIndex(@NonNull Path resDir) {
+        this.resDir = resDir;
+    }
+
+    /**
+     * Walks the given resource directory once and indexes all regular files
+     * below it.
+     */
+    public static @NonNull ResourceIndex build(@NonNull Path resDir) throws IOException {
+        return build(resDir, null);
+    }
+
+    /**
+     * Same as {@link #build(Path)}, but directories right below the resource
+     * directory which are not accepted by the given filter are skipped without
+     * being opened.
+     */
+    public static @NonNull ResourceIndex build(@NonNull Path resDir, @Nullable Predicate<String> dirFilter)
+            throws IOException {
+        final ResourceIndex index = new ResourceIndex(resDir);
+        Files.walkFileTree(resDir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (dirFilter != null && resDir.equals(dir.getParent())
+                        && !dirFilter.test(dir.getFileName().toString())) {
+                    index.skippedDirs.add(dir);
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    index.files.add(file);
+                    index.stamps.put(file, new Manifest.Stamp(attrs.size(), attrs.lastModifiedTime().toMillis()));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        index.files.sort(ResourceIndex::compareNames);
+        index.skippedDirs.sort(ResourceIndex::compareNames);
+        for (Path file : index.files) {
+            final Path relative = resDir.relativize(file);
+            index.resourcePaths.put(toResourcePath(relative), file);
+            if (relative.getNameCount() == 2) {
+                index.dirs.computeIfAbsent(relative.getName(0).toString(), dir -> new ArrayList<>()).add(file);
+                index.baseNames.computeIfAbsent(getBaseName(file), name -> new ArrayList<>()).add(file);
+            }
+        }
+        return index;
+    }
+
+    public @NonNull Path getResDir() {
+        return resDir;
+    }
+
+    /**
+     * Get all files below the resource directory, sorted by the names of
+     * their path components.
+     */
+    public @NonNull List<Path> getFiles() {
+        return Collections.unmodifiableList(files);
+    }
+
+    /**
+     * Get the directories right below the resource directory which were
+     * skipped by the directory filter, sorted by name.
+     */
+    public @NonNull List<Path> getSkippedDirs() {
+        return Collections.unmodifiableList(skippedDirs);
+    }
+
+    /**
+     * Get the names of all directories right below the resource directory
+     * which contain files, e.g. {@code values} or {@code drawable-hdpi}.
+     */
+    public @NonNull Set<String> getDirNames() {
+        return Collections.unmodifiableSet(dirs.keySet());
+    }
+
+    /**
+     * Get the files in the directory of the given name right below the
+     * resource directory.
+     */
+    public @NonNull List<Path> getFiles(@NonNull String dirName) {
+        final List<Path> result = dirs.get(dirName);
+        return result != null ? Collections.unmodifiableList(result) : Collections.<Path>emptyList();
+    }
+
+    /**
+     * Get all XML files in {@code values*} directories.
+     */
+    public @NonNull List<Path> getValuesFiles() {
+        final List<Path> result = new ArrayList<>();
+        for (Map.Entry<String, List<Path>> entry : dirs.entrySet()) {
+            if (entry.getKey().startsWith("values")) {
+                for (Path file : entry.getValue()) {
+                    if (file.getFileName().toString().endsWith(".xml")) {
+                        result.add(file);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether the given file is an XML file in a {@code values*}
+     * directory right below the resource directory.
+     */
+    public boolean isValuesFile(@NonNull Path file) {
+        final Path relative = resDir.relativize(file);
+        return relative.getNameCount() == 2
+                && relative.getName(0).toString().startsWith("values")
+                && relative.getFileName().toString().endsWith(".xml");
+    }
+
+    /**
+     * Get the file of the given resource path, e.g. {@code drawable/icon.png}.
+     */
+    public @Nullable Path getFile(@NonNull String resourcePath) {
+        return resourcePaths.get(resourcePath);
+    }
+
+    /**
+     * Get the files in any directory right below the resource directory whose
+     * name without extensions is the given base name, e.g. {@code icon} for
+     * {@code drawable-hdpi/icon.9.png}.
+     */
+    public @NonNull List<Path> getFilesByBaseName(@NonNull String baseName) {
+        final List<Path> result = baseNames.get(baseName);
+        return result != null ? Collections.unmodifiableList(result) : Collections.<Path>emptyList();
+    }
+
+    /**
+     * Finds the files a {@code file} rule path like {@code drawable/icon}
+     * refers to.
+     * <p>
+     * The file name of the rule path matches files of that name as well as
+     * files of that base name with any extension, e.g. {@code icon.png} or
+     * {@code icon.9.png}. A directory without qualifiers matches the directory
+     * of that resource type with any qualifiers, e.g. {@code drawable-hdpi} or
+     * {@code drawable-night-v31}, while a directory with qualifiers only
+     * matches itself.
+     *
+     * @return the matching files, sorted by path.
+     */
+    public @NonNull List<Path> findFiles(@NonNull String filePath) {
+        final int slash = filePath.indexOf('/');
+        if (slash <= 0 || slash != filePath.lastIndexOf('/') || slash == filePath.length() - 1) {
+            final Path file = getFile(filePath);
+            return file != null ? Collections.singletonList(file) : Collections.<Path>emptyList();
+        }
+        final String dirName = filePath.substring(0, slash);
+        final String fileName = filePath.substring(slash + 1);
+        final boolean anyQualifiers = dirName.indexOf('-') < 0;
+        final List<Path> result = new ArrayList<>();
+        for (Path file : getFilesByBaseName(getBaseName(fileName))) {
+            final String name = file.getFileName().toString();
+            if (!name.equals(fileName) && !(fileName.indexOf('.') < 0 && name.startsWith(fileName + "."))) {
+                continue;
+            }
+            final String dir = file.getParent().getFileName().toString();
+            if (dir.equals(dirName) || (anyQualifiers && dir.startsWith(dirName + "-"))) {
+                result.add(file);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the path of the given file relative to the resource directory, with
+     * {@code /} as separator.
+     */
+    public @NonNull String getResourcePath(@NonNull Path file) {
+        return toResourcePath(resDir.relativize(file));
+    }
+
+    /**
+     * Get the size and modification time of the given file at the time of
+     * the walk.
+     */
+    public @Nullable Manifest.Stamp getStamp(@NonNull Path file) {
+        return stamps.get(file);
+    }
+
+    /**
+     * Get the values files which declare a value resource of the given name.
+     * Files which can't be tokenized are included, since they may declare it.
+     * All values files are tokenized on the first call.
+     */
+    public @NonNull List<Path> getDeclaringFiles(@NonNull String name) {
+        Map<String, List<Path>> result = declarations;
+        if (result == null) {
+            synchronized (this) {
+                result = declarations;
+                if (result == null) {
+                    declarations = result = scanDeclarations();
+                }
+            }
+        }
+        final List<Path> declaring = result.get(name);
+        final List<Path> unknown = result.get(null);
+        if (unknown == null) {
+            return declaring != null ? Collections.unmodifiableList(declaring) : Collections.<Path>emptyList();
+        }
+        final List<Path> merged = new ArrayList<>(unknown);
+        if (declaring != null) {
+            merged.addAll(declaring);
+            merged.sort(ResourceIndex::compareNames);
+        }
+        return merged;
+    }
+
+    /**
+     * Get the SHA-256 hash of the content of the given file, or null if it
+     * can't be read. The file is only read on the first call, so only hash
+     * files whose sizes from the walk match those they're compared to.
+     */
+    public @Nullable String getContentHash(@NonNull Path file) {
+        String hash = contentHashes.get(file);
+        if (hash == null) {
+            try {
+                hash = Hashing.sha256(Files.readAllBytes(file));
+            } catch (IOException e) {
+                Log.debug("arpt: failed to read: {}: {}", file, e.getMessage());
+                return null;
+            }
+            contentHashes.put(file, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Get the SHA-256 hash of the element of each value resource declared by
+     * the given values file, by {@link Deduper#getKey(String, String, String)},
+     * or null if the file can't be tokenized. Resources declared more than
+     * once by the file are mapped to an empty hash. The file is only read on
+     * the first call.
+     */
+    public @Nullable Map<String, String> getValueHashes(@NonNull Path file) {
+        Map<String, String> hashes = valueHashes.get(file);
+        if (hashes == null) {
+            hashes = UNKNOWN;
+            try {
+                final ValuesFile valuesFile = ValuesFile.read(file);
+                if (valuesFile != null) {
+                    hashes = new HashMap<>();
+                    final MessageDigest digest = Hashing.newDigest();
+                    for (ValuesFile.Entry entry : valuesFile.getEntries()) {
+                        final String key = Deduper.getKey(entry.getTag(), entry.getType(), entry.getName());
+                        digest.update(valuesFile.getContent(entry));
+                        final String hash = Hashing.toHex(digest.digest());
+                        if (hashes.putIfAbsent(key, hash) != null) {
+                            hashes.put(key, "");
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Log.debug("arpt: failed to tokenize: {}: {}", file, e.getMessage());
+            }
+            valueHashes.put(file, hashes);
+        }
+        return hashes != UNKNOWN ? Collections.unmodifiableMap(hashes) : null;
+    }
+
+    /**
+     * Maps the names of all value resources to the files declaring them, files
+     * which can't be tokenized are mapped from null.
+     */
+    private @NonNull Map<String, List<Path>> scanDeclarations() {
+        final Map<String, List<Path>> result = new HashMap<>();
+        for (Path file : getValuesFiles()) {
+            ValuesFile valuesFile = null;
+            try {
+                valuesFile = ValuesFile.read(file);
+            } catch (IOException e) {
+                Log.debug("arpt: failed to tokenize: {}: {}", file, e.getMessage());
+            }
+            if (valuesFile == null) {
+                result.computeIfAbsent(null, name -> new ArrayList<>()).add(file);
+                continue;
+            }
+            for (ValuesFile.Entry entry : valuesFile.getEntries()) {
+                final List<Path> declaring = result.computeIfAbsent(entry.getName(), name -> new ArrayList<>());
+                if (declaring.isEmpty() || declaring.get(declaring.size() - 1) != file) {
+                    declaring.add(file);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static @NonNull String toResourcePath(@NonNull Path relative) {
+        return relative.toString().replace(File.separatorChar, '/');
+    }
+
+    static @NonNull String getBaseName(@NonNull Path file) {
+        return getBaseName(file.getFileName().toString());
+    }
+
+    private static @NonNull String getBaseName(@NonNull String name) {
+        final int dot = name.indexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    /**
+     * Orders paths by the names of their components, so that a directory is
+     * directly followed by its contents.
+     */
+    static int compareNames(@NonNull Path a, @NonNull Path b) {
+        for (int i = 0, count = Math.min(a.getNameCount(), b.getNameCount()); i < count; i++) {
+            final int result = a.getName(i).compareTo(b.getName(i));
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Integer.compare(a.getNameCount(), b.getNameCount());
+    }
+}
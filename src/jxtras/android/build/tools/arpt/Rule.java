@@ -16,36 +16,58 @@
 package jxtras.android.build.tools.arpt;
 
 import jxtras.android.build.tools.util.Log;
+import jxtras.android.build.tools.util.XmlUtils;
 import jxtras.android.build.tools.annotation.NonNull;
+import jxtras.android.build.tools.annotation.Nullable;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 public class Rule {
 
+    /**
+     * The tag of rules listing the configurations (e.g. locales and densities)
+     * kept by the target products matching their availability, either as
+     * items or separated by commas, see {@link ConfigFilter}.
+     */
+    public static final String CONFIG = "config";
+
     private final Set<String> resourceNames;
+    private final Set<String> patterns;
     private final String resourceType;
     private final String availability;
+    private final Pattern availabilityPattern;
 
-    private Rule(@NonNull String resourceType, @NonNull String availability) {
+    private Rule(@NonNull String resourceType, @NonNull String availability, @NonNull Pattern availabilityPattern) {
         this.resourceType = resourceType;
         this.availability = availability;
+        this.availabilityPattern = availabilityPattern;
         this.resourceNames = new HashSet<>();
+        this.patterns = new HashSet<>();
     }
 
     public @NonNull Set<String> getResourceNames() {
         return resourceNames;
     }
 
+    /**
+     * Get the patterns of the names of resources, either given as regular
+     * expressions or translated from globs, see {@link NameMatcher}.
+     */
+    public @NonNull Set<String> getPatterns() {
+        return patterns;
+    }
+
     public @NonNull String getResourceType() {
         return resourceType;
     }
@@ -54,17 +76,29 @@ public class Rule {
         return availability;
     }
 
-    public static List<Rule> parseRules(@NonNull File file) {
+    /**
+     * Returns whether the resources of this rule are available to the given
+     * target product, i.e. the target product matches the availability regex.
+     */
+    public boolean isAvailableTo(@NonNull String targetProduct) {
+        return availability.isEmpty() || availabilityPattern.matcher(targetProduct).matches();
+    }
+
+    /**
+     * Parses the rules of the given rule file.
+     *
+     * @return the rules, or null if the rule file is invalid, e.g. has an
+     * availability which isn't a valid regex, which is logged as an error.
+     */
+    public static @Nullable List<Rule> parseRules(@NonNull File file) {
         final List<Rule> rules = new ArrayList<>();
         try {
-            final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-            final DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
-            final Document document = documentBuilder.parse(file);
+            final Document document = XmlUtils.parse(file);
 
             final Element root = document.getDocumentElement();
             if (!"resources".equals(root.getTagName())) {
                 Log.error("arpt: the name of root node must be 'resources'");
-                return rules;
+                return null;
             }
 
             final NodeList resources = root.getChildNodes();
@@ -91,19 +125,54 @@ public class Rule {
                         continue;
                     }
 
+                    final Pattern availabilityPattern;
+                    try {
+                        availabilityPattern = Pattern.compile(availability);
+                    } catch (PatternSyntaxException e) {
+                        Log.error("arpt: invalid availability '" + availability + "' of resource type '"
+                                + resourceType + "': " + e.getDescription());
+                        return null;
+                    }
+
                     final NodeList items = resource.getElementsByTagName("item");
+                    if (CONFIG.equals(resourceType) && (items == null || items.getLength() == 0)) {
+                        final Rule rule = new Rule(resourceType, availability, availabilityPattern);
+                        for (String config : resource.getTextContent().trim().split("\\s*,\\s*")) {
+                            if (!config.isEmpty()) {
+                                rule.resourceNames.add(config);
+                            }
+                        }
+                        rules.add(rule);
+                        continue;
+                    }
                     if (items == null || items.getLength() == 0) {
                         Log.warn("arpt: resource items of resource type '" + resourceType
                                 + "' not defined, assume it's available to all");
                         continue;
                     }
 
-                    final Rule rule = new Rule(resourceType, availability);
+                    final Rule rule = new Rule(resourceType, availability, availabilityPattern);
 
                     for (int j = 0, count = items.getLength(); j < count; j++) {
-                        final String name = items.item(j).getTextContent();
-                        if (name != null && !name.isEmpty()) {
+                        final Element item = (Element) items.item(j);
+                        final String name = item.getTextContent();
+                        if (name == null || name.isEmpty()) {
+                            continue;
+                        }
+                        final boolean regex = "true".equals(item.getAttribute("regex"));
+                        if (!regex && !NameMatcher.isGlob(name)) {
                             rule.resourceNames.add(name);
+                        } else if (CONFIG.equals(resourceType) || Resolver.FILE.getResourceType().equals(resourceType)) {
+                            Log.warn("arpt: patterns not supported for resource type '" + resourceType
+                                    + "', skip '" + name + "'");
+                        } else {
+                            final String pattern = regex ? name : NameMatcher.globToRegex(name);
+                            try {
+                                NameMatcher.compile(Collections.singleton(pattern));
+                                rule.patterns.add(pattern);
+                            } catch (IllegalArgumentException e) {
+                                Log.warn("arpt: " + e.getMessage() + ", skipped");
+                            }
                         }
                     }
 
@@ -112,6 +181,7 @@ public class Rule {
             }
         } catch (Exception e) {
             Log.error("arpt: failed to parse rules: " + e.getMessage());
+            return null;
         }
         return rules;
     }
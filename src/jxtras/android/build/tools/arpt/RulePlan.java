@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2022 Tony Guo. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jxtras.android.build.tools.arpt;
+
+import jxtras.android.build.tools.annotation.NonNull;
+import jxtras.android.build.tools.annotation.Nullable;
+import jxtras.android.build.tools.util.FileUtils;
+import jxtras.android.build.tools.util.Hashing;
+import jxtras.android.build.tools.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The rules of a rule file compiled for resolving the {@link RemovalIndex} of
+ * target products.
+ * <p>
+ * The rule file is only parsed when a target is resolved for the first time,
+ * and every availability regex is compiled once (see {@link Rule}). Resolved
+ * indexes can be kept in a plan cache directory, keyed by the content hash of
+ * the rule file and the target product, so that later runs with the same rules
+ * don't touch the XML at all.
+ */
+public class RulePlan {
+
+    private static final int MAGIC = 0x41525054; // "ARPT"
+    private static final int VERSION = 5;
+
+    private final Path ruleFile;
+    private final String digest;
+    private final Map<String, RemovalIndex> indexes = new ConcurrentHashMap<>();
+    private volatile List<Rule> rules;
+
+    private RulePlan(@NonNull Path ruleFile, @NonNull String digest) {
+        this.ruleFile = ruleFile;
+        this.digest = digest;
+    }
+
+    /**
+     * Creates a plan for the given rule file, without parsing it yet.
+     */
+    public static @NonNull RulePlan of(@NonNull Path ruleFile) throws IOException {
+        return new RulePlan(ruleFile, Hashing.sha256(Files.readAllBytes(ruleFile)));
+    }
+
+    public @NonNull Path getRuleFile() {
+        return ruleFile;
+    }
+
+    /**
+     * Get the SHA-256 digest of the content of the rule file.
+     */
+    public @NonNull String getDigest() {
+        return digest;
+    }
+
+    /**
+     * Get the parsed rules, the rule file is parsed on first access, or null
+     * if it's invalid, see {@link Rule#parseRules(java.io.File)}. An invalid
+     * rule file is parsed again on every access, so its errors are logged by
+     * every request.
+     */
+    public @Nullable List<Rule> getRules() {
+        List<Rule> result = rules;
+        if (result == null) {
+            synchronized (this) {
+                result = rules;
+                if (result == null) {
+                    rules = result = Rule.parseRules(ruleFile.toFile());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Resolves the resources to be removed for the given target product, or
+     * null if the rule file is invalid.
+     */
+    public @Nullable RemovalIndex resolve(@NonNull String targetProduct) {
+        return indexes.computeIfAbsent(targetProduct, target -> {
+            final List<Rule> parsed = getRules();
+            return parsed != null ? RemovalIndex.build(parsed, target) : null;
+        });
+    }
+
+    /**
+     * Resolves the resources to be removed for the given target product, the
+     * result is loaded from or saved to the given plan cache directory. Null
+     * if the rule file is invalid, in which case nothing is saved.
+     */
+    public @Nullable RemovalIndex resolve(@NonNull String targetProduct, @Nullable Path cacheDir) {
+        if (cacheDir == null) {
+            return resolve(targetProduct);
+        }
+        final Path cacheFile = cacheDir.resolve(Hashing.sha256((digest + '\0' + targetProduct)
+                .getBytes(StandardCharsets.UTF_8)) + ".plan");
+        return indexes.computeIfAbsent(targetProduct, target -> {
+            final RemovalIndex cached = readCache(cacheFile);
+            if (cached != null) {
+                Log.info("arpt: rule plan for target '" + target + "' loaded from: " + cacheFile);
+                return cached;
+            }
+            final List<Rule> parsed = getRules();
+            if (parsed == null) {
+                return null;
+            }
+            final RemovalIndex index = RemovalIndex.build(parsed, target);
+            if (!parsed.isEmpty()) {
+                writeCache(cacheFile, index);
+            }
+            return index;
+        });
+    }
+
+    private @Nullable RemovalIndex readCache(@NonNull Path cacheFile) {
+        try (InputStream is = Files.newInputStream(cacheFile);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(is))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !digest.equals(in.readUTF())) {
+                Log.warn("arpt: ignoring stale rule plan: " + cacheFile);
+                return null;
+            }
+            return RemovalIndex.readFrom(in);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            Log.warn("arpt: failed to read rule plan: " + cacheFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeCache(@NonNull Path cacheFile, @NonNull RemovalIndex index) {
+        Path temp = null;
+        try {
+            Files.createDirectories(cacheFile.getParent());
+            temp = Files.createTempFile(cacheFile.getParent(), ".plan", ".tmp");
+            try (OutputStream os = Files.newOutputStream(temp);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(digest);
+                index.writeTo(out);
+            }
+            FileUtils.move(temp, cacheFile);
+        } catch (IOException e) {
+            Log.warn("arpt: failed to write rule plan: " + cacheFile + ": " + e.getMessage());
+        } finally {
+            if (temp != null) {
+                FileUtils.deleteQuietly(temp);
+            }
+        }
+    }
+}
@@ -0,0 +1,554 @@
+/*
+ * Copyright (C) 2022 Tony Guo. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jxtras.android.build.tools.arpt;
+
+import jxtras.android.build.tools.annotation.NonNull;
+import jxtras.android.build.tools.annotation.Nullable;
+import jxtras.android.build.tools.util.FileUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A values XML file tokenized into the byte ranges of the resources declared
+ * in its {@code <resources>} root element.
+ * <p>
+ * Unlike a DOM round trip, removing resources from a values file only drops
+ * the byte ranges of the removed elements (together with the indentation and
+ * line break around them); all other bytes including whitespace, comments and
+ * attribute quoting are copied as they are. Large files are memory-mapped and
+ * written with a single gather-write, so memory usage does not grow with the
+ * size of the file.
+ * <p>
+ * Only ASCII compatible encodings (UTF-8, US-ASCII and ISO-8859-1) can be
+ * tokenized at the byte level, see {@link #read(Path)}.
+ */
+public class ValuesFile {
+
+    /** Files larger than this are memory-mapped rather than read onto the heap */
+    private static final long MAP_THRESHOLD = 64 * 1024;
+
+    private static final String ROOT_TAG = "resources";
+
+    private final ByteBuffer buffer;
+    private final List<Entry> entries;
+
+    private ValuesFile(@NonNull ByteBuffer buffer, @NonNull List<Entry> entries) {
+        this.buffer = buffer;
+        this.entries = entries;
+    }
+
+    /**
+     * A resource declared as a direct child of {@code <resources>}.
+     */
+    public static final class Entry {
+        private final String tag;
+        private final String name;
+        private final String type;
+        private final int start;
+        private final int end;
+
+        private Entry(@NonNull String tag, @NonNull String name, @Nullable String type, int start, int end) {
+            this.tag = tag;
+            this.name = name;
+            this.type = type;
+            this.start = start;
+            this.end = end;
+        }
+
+        public @NonNull String getTag() {
+            return tag;
+        }
+
+        public @NonNull String getName() {
+            return name;
+        }
+
+        /**
+         * Get the {@code type} attribute of the element, e.g. {@code dimen} for
+         * {@code <item type="dimen">}, or null if there is none.
+         */
+        public @Nullable String getType() {
+            return type;
+        }
+
+        /**
+         * Get the offset of the first byte of the element, i.e. its '&lt;'.
+         */
+        public int getStart() {
+            return start;
+        }
+
+        /**
+         * Get the offset following the last byte of the element, i.e. its '&gt;'.
+         */
+        public int getEnd() {
+            return end;
+        }
+    }
+
+    /**
+     * Get the bytes of the given entry, from its '&lt;' to its '&gt;'.
+     */
+    public @NonNull ByteBuffer getContent(@NonNull Entry entry) {
+        return slice(entry.start, entry.end);
+    }
+
+    /**
+     * Get all resources in the order they are declared.
+     */
+    public @NonNull List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Reads and tokenizes the given values file.
+     *
+     * @return the tokenized file, or null if the file is not encoded in an
+     * ASCII compatible encoding and thus can't be tokenized at the byte level.
+     * @throws IOException if the file can't be read or is not well-formed.
+     */
+    public static @Nullable ValuesFile read(@NonNull Path file) throws IOException {
+        return parse(load(file));
+    }
+
+    /**
+     * Loads the raw content of the given file, large files are memory-mapped
+     * unless they're in an archive.
+     */
+    public static @NonNull ByteBuffer load(@NonNull Path file) throws IOException {
+        if (file.getFileSystem() != FileSystems.getDefault()) {
+            return ByteBuffer.wrap(Files.readAllBytes(file));
+        }
+        final ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("file too large: " + size + " bytes");
+            }
+            if (size > MAP_THRESHOLD) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                buffer = ByteBuffer.allocate((int) size);
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    // keep reading
+                }
+                buffer.flip();
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Tokenizes the given buffer holding the content of a values file.
+     *
+     * @see #read(Path)
+     */
+    public static @Nullable ValuesFile parse(@NonNull ByteBuffer buffer) throws IOException {
+        if (!isAsciiCompatible(buffer)) {
+            return null;
+        }
+        return new ValuesFile(buffer, new Scanner(buffer).scan());
+    }
+
+    /**
+     * Get the content of this file without the given entries, as the list of
+     * byte ranges to be kept.
+     */
+    public @NonNull ByteBuffer[] splice(@NonNull List<Entry> removed) {
+        final List<ByteBuffer> ranges = new ArrayList<>();
+        final List<Entry> sorted = sort(removed);
+        int position = 0;
+        for (int i = 0; i < sorted.size(); ) {
+            final Entry first = sorted.get(i);
+            int end = first.end;
+            // entries separated by blanks only are removed together
+            while (++i < sorted.size() && sorted.get(i).start >= end && skipBlanks(end) == sorted.get(i).start) {
+                end = sorted.get(i).end;
+            }
+            final int[] range = removalRange(first.start, end);
+            if (range[0] < position || (i < sorted.size() && sorted.get(i).start < end)) {
+                throw new IllegalArgumentException("overlapping entries: " + first.name);
+            }
+            if (range[0] > position) {
+                ranges.add(slice(position, range[0]));
+            }
+            position = range[1];
+        }
+        if (position < buffer.limit()) {
+            ranges.add(slice(position, buffer.limit()));
+        }
+        return ranges.toArray(new ByteBuffer[0]);
+    }
+
+    /**
+     * Writes the content of this file without the given entries to the target
+     * file, which is replaced atomically if possible.
+     */
+    public void write(@NonNull Path target, @NonNull List<Entry> removed) throws IOException {
+        FileUtils.write(target, splice(removed));
+    }
+
+    private static List<Entry> sort(List<Entry> entries) {
+        final List<Entry> sorted = new ArrayList<>(entries);
+        Collections.sort(sorted, (a, b) -> Integer.compare(a.start, b.start));
+        return sorted;
+    }
+
+    private ByteBuffer slice(int start, int end) {
+        final ByteBuffer slice = buffer.duplicate();
+        slice.limit(end).position(start);
+        return slice;
+    }
+
+    /**
+     * Get the byte range removed along with the entries from start to end,
+     * which includes their indentation and line break if they're on a line of
+     * their own, and the blanks between them and the end of the line or the
+     * next element otherwise, so no trailing whitespace is left behind.
+     */
+    private int[] removalRange(int start, int end) {
+        int lineStart = start;
+        while (lineStart > 0 && isBlank(buffer.get(lineStart - 1))) {
+            lineStart--;
+        }
+        int lineEnd = skipBlanks(end);
+        final int limit = buffer.limit();
+        final boolean atLineEnd = lineEnd == limit || isLineBreak(buffer.get(lineEnd));
+        if (!(lineStart == 0 || isLineBreak(buffer.get(lineStart - 1))) || !atLineEnd) {
+            return new int[] { atLineEnd ? lineStart : start, lineEnd };
+        }
+        if (lineEnd < limit && buffer.get(lineEnd) == '\r') {
+            lineEnd++;
+        }
+        if (lineEnd < limit && buffer.get(lineEnd) == '\n') {
+            lineEnd++;
+        }
+        return new int[] { lineStart, lineEnd };
+    }
+
+    private int skipBlanks(int position) {
+        final int limit = buffer.limit();
+        while (position < limit && isBlank(buffer.get(position))) {
+            position++;
+        }
+        return position;
+    }
+
+    private static boolean isBlank(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static boolean isLineBreak(byte b) {
+        return b == '\n' || b == '\r';
+    }
+
+    /**
+     * Checks the byte order mark and the XML declaration for an encoding that
+     * can be tokenized byte by byte.
+     */
+    public static boolean isAsciiCompatible(@NonNull ByteBuffer buffer) {
+        final int limit = buffer.limit();
+        if (limit >= 2) {
+            final int b0 = buffer.get(0) & 0xff;
+            final int b1 = buffer.get(1) & 0xff;
+            if (b0 == 0xfe || b0 == 0xff || b0 == 0 || b1 == 0) {
+                return false; // UTF-16 or UTF-32
+            }
+        }
+        final int offset = hasUtf8Bom(buffer) ? 3 : 0;
+        if (!startsWith(buffer, offset, "<?xml")) {
+            return true;
+        }
+        final int end = indexOf(buffer, "?>", offset);
+        if (end < 0) {
+            return true;
+        }
+        final byte[] bytes = new byte[end - offset];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        final String declaration = new String(bytes, StandardCharsets.ISO_8859_1).toLowerCase(Locale.ROOT);
+        final int index = declaration.indexOf("encoding");
+        if (index < 0) {
+            return true;
+        }
+        final String encoding = declaration.substring(index + "encoding".length())
+                .replaceAll("^\\s*=\\s*['\"]([^'\"]*)['\"].*$", "$1");
+        switch (encoding) {
+            case "utf-8":
+            case "utf8":
+            case "us-ascii":
+            case "ascii":
+            case "iso-8859-1":
+            case "latin1":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean hasUtf8Bom(ByteBuffer buffer) {
+        return buffer.limit() >= 3
+                && (buffer.get(0) & 0xff) == 0xef
+                && (buffer.get(1) & 0xff) == 0xbb
+                && (buffer.get(2) & 0xff) == 0xbf;
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, int offset, String prefix) {
+        if (offset + prefix.length() > buffer.limit()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buffer.get(offset + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(ByteBuffer buffer, String str, int from) {
+        final byte first = (byte) str.charAt(0);
+        for (int i = from, last = buffer.limit() - str.length(); i <= last; i++) {
+            if (buffer.get(i) == first && startsWith(buffer, i, str)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A minimal XML tokenizer that only keeps track of the element nesting and
+     * records the direct children of the root element.
+     */
+    private static final class Scanner {
+        private final ByteBuffer buffer;
+        private final int limit;
+        private int position;
+
+        private String tag;
+        private String name;
+        private String type;
+        private boolean selfClosing;
+
+        Scanner(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.limit = buffer.limit();
+            this.position = hasUtf8Bom(buffer) ? 3 : 0;
+        }
+
+        List<Entry> scan() throws IOException {
+            final List<Entry> entries = new ArrayList<>();
+            int depth = 0;
+            int start = -1;
+            String entryTag = null;
+            String entryName = null;
+            String entryType = null;
+            while ((position = indexOf(buffer, "<", position)) >= 0) {
+                final int begin = position;
+                if (startsWith(buffer, position, "<!--")) {
+                    skipPast("-->");
+                } else if (startsWith(buffer, position, "<![CDATA[")) {
+                    skipPast("]]>");
+                } else if (startsWith(buffer, position, "<?")) {
+                    skipPast("?>");
+                } else if (startsWith(buffer, position, "<!")) {
+                    skipDeclaration();
+                } else if (startsWith(buffer, position, "</")) {
+                    skipPast(">");
+                    if (--depth < 0) {
+                        throw malformed(begin, "unexpected end tag");
+                    }
+                    if (depth == 1 && start >= 0) {
+                        entries.add(new Entry(entryTag, entryName, entryType, start, position));
+                        start = -1;
+                    }
+                } else {
+                    readStartTag();
+                    if (depth == 0) {
+                        if (!ROOT_TAG.equals(tag)) {
+                            return Collections.emptyList();
+                        }
+                    } else if (depth == 1) {
+                        if (selfClosing) {
+                            entries.add(new Entry(tag, name, type, begin, position));
+                        } else {
+                            start = begin;
+                            entryTag = tag;
+                            entryName = name;
+                            entryType = type;
+                        }
+                    }
+                    if (!selfClosing) {
+                        depth++;
+                    }
+                }
+            }
+            if (depth != 0) {
+                throw malformed(limit, "unclosed element");
+            }
+            return entries;
+        }
+
+        private void skipPast(String str) throws IOException {
+            final int index = indexOf(buffer, str, position + 1);
+            if (index < 0) {
+                throw malformed(position, "missing '" + str + "'");
+            }
+            position = index + str.length();
+        }
+
+        /**
+         * Skips a DOCTYPE declaration including its internal subset.
+         */
+        private void skipDeclaration() throws IOException {
+            final int begin = position;
+            int brackets = 0;
+            byte quote = 0;
+            for (position += 2; position < limit; position++) {
+                final byte b = buffer.get(position);
+                if (quote != 0) {
+                    if (b == quote) {
+                        quote = 0;
+                    }
+                } else if (b == '"' || b == '\'') {
+                    quote = b;
+                } else if (b == '[') {
+                    brackets++;
+                } else if (b == ']') {
+                    brackets--;
+                } else if (b == '>' && brackets == 0) {
+                    position++;
+                    return;
+                }
+            }
+            throw malformed(begin, "unterminated declaration");
+        }
+
+        private void readStartTag() throws IOException {
+            final int begin = position++;
+            tag = readName();
+            name = "";
+            type = null;
+            selfClosing = false;
+            while (true) {
+                skipWhitespace();
+                if (position >= limit) {
+                    throw malformed(begin, "unterminated start tag");
+                }
+                final byte b = buffer.get(position);
+                if (b == '>') {
+                    position++;
+                    return;
+                }
+                if (b == '/') {
+                    if (position + 1 >= limit || buffer.get(position + 1) != '>') {
+                        throw malformed(position, "expected '>'");
+                    }
+                    position += 2;
+                    selfClosing = true;
+                    return;
+                }
+                final String attribute = readName();
+                skipWhitespace();
+                if (position >= limit || buffer.get(position) != '=') {
+                    throw malformed(position, "expected '=' after attribute '" + attribute + "'");
+                }
+                position++;
+                skipWhitespace();
+                final String value = readAttributeValue();
+                if ("name".equals(attribute)) {
+                    name = value;
+                } else if ("type".equals(attribute)) {
+                    type = value;
+                }
+            }
+        }
+
+        private String readName() throws IOException {
+            final int begin = position;
+            while (position < limit) {
+                final byte b = buffer.get(position);
+                if (b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == '/' || b == '>' || b == '=') {
+                    break;
+                }
+                position++;
+            }
+            if (position == begin) {
+                throw malformed(begin, "expected a name");
+            }
+            return decode(begin, position);
+        }
+
+        private String readAttributeValue() throws IOException {
+            final byte quote = position < limit ? buffer.get(position) : 0;
+            if (quote != '"' && quote != '\'') {
+                throw malformed(position, "expected quoted attribute value");
+            }
+            final int begin = ++position;
+            while (position < limit && buffer.get(position) != quote) {
+                position++;
+            }
+            if (position >= limit) {
+                throw malformed(begin, "unterminated attribute value");
+            }
+            return unescape(decode(begin, position++));
+        }
+
+        private void skipWhitespace() {
+            while (position < limit) {
+                final byte b = buffer.get(position);
+                if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                    break;
+                }
+                position++;
+            }
+        }
+
+        private String decode(int start, int end) {
+            final byte[] bytes = new byte[end - start];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(start + i);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private static String unescape(String value) {
+            if (value.indexOf('&') < 0) {
+                return value;
+            }
+            return value.replace("&lt;", "<")
+                    .replace("&gt;", ">")
+                    .replace("&quot;", "\"")
+                    .replace("&apos;", "'")
+                    .replace("&amp;", "&");
+        }
+
+        private static IOException malformed(int offset, String reason) {
+            return new IOException("malformed XML at offset " + offset + ": " + reason);
+        }
+    }
+}
@@ -19,6 +19,7 @@ import java.io.File;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public enum Option {
@@ -37,6 +38,24 @@ public enum Option {
             }
         }
     },
+    IN("-in", "Location of resource dir to be pruned into the output dir") {
+        @Override
+        protected void processMatching(ArgumentIterator iterator, OptionHelper helper) {
+            Path path = getFileArg(iterator, helper, false, true);
+            if (path != null) {
+                helper.inputDir(path);
+            }
+        }
+    },
+    OUT("-out", "Location of the output dir for the pruned resources") {
+        @Override
+        protected void processMatching(ArgumentIterator iterator, OptionHelper helper) {
+            Path path = getFileArg(iterator, helper, false, true);
+            if (path != null) {
+                helper.outputDir(path);
+            }
+        }
+    },
     TARGET("-target", "Specify target product name") {
         @Override
         protected void processMatching(ArgumentIterator iterator, OptionHelper helper) {
@@ -46,6 +65,15 @@ public enum Option {
             }
         }
     },
+    TARGETS("-targets", "Specify target product names to prune for in one go") {
+        @Override
+        protected void processMatching(ArgumentIterator iterator, OptionHelper helper) {
+            List<String> names = getNameListArg(iterator, helper);
+            if (names != null) {
+                helper.targetProducts(names);
+            }
+        }
+    },
     RULE("-rule", "Specify path to the rule file used for resource pruning") {
         @Override
         protected void processMatching(ArgumentIterator iterator, OptionHelper helper) {
@@ -55,6 +83,138 @@ public enum Option {
             }
         }
     },
+    BATCH("-batch", "Specify file listing the modules to be pruned in one go") {
+        @Override
+        protected void processMatching(ArgumentIterator iterator, OptionHelper helper) {
+            Path path = getFileArg(iterator, helper, true, false);
+            if (path != null) {
+                helper.batchFile(path);
+            }
+        }
+    },
+    PLAN_CACHE("-plancache", "Specify directory to cache compiled rule plans in") {
+        @Override
+        protected void processMatching(ArgumentIterator iterator, OptionHelper helper) {
+            Path path = getFileArg(iterator, helper, false, true);
+            if (path != null) {
+                helper.planCacheDir(path);
+            }
+        }
+    },
+    CACHE("-cache", "Specify directory to cache pruned values files in") {
+        @Override
+        protected void processMatching(ArgumentIterator iterator, OptionHelper helper) {
+            Path path = getFileArg(iterator, helper, false, true);
+            if (path != null) {
+                helper.cacheDir(path);
+            }
+        }
+    },
+    CACHE_SIZE("-cachesize", "Specify megabytes the cache of pruned values files is trimmed to") {
+        @Override
+        protected void processMatching(ArgumentIterator iterator, OptionHelper helper) {
+            Integer megabytes = getIntArg(iterator, helper);
+            if (megabytes != null) {
+                helper.cacheSize(megabytes);
+            }
+        }
+    },
+    INCREMENTAL("-incremental", "Specify manifest file to enable incremental pruning") {
+        @Override
+        protected void processMatching(ArgumentIterator iterator, OptionHelper helper) {
+            Path path = getFileArg(iterator, helper, true, false);
+            if (path != null) {
+                helper.manifestFile(path);
+            }
+        }
+    },
+    METRICS("-metrics", "Specify file to write counters and timings of the run to as JSON") {
+        @Override
+        protected void processMatching(ArgumentIterator iterator, OptionHelper helper) {
+            Path path = getFileArg(iterator, helper, true, false);
+            if (path != null) {
+                helper.metricsFile(path);
+            }
+        }
+    },
+    ASYNC_LOG("-asynclog", "Write the log on a separate thread") {
+        @Override
+        protected void processMatching(ArgumentIterator iterator, OptionHelper helper) {
+            helper.asyncLog(true);
+        }
+    },
+    TRANSITIVE("-transitive", "Also remove resources only referenced by removed resources") {
+        @Override
+        protected void processMatching(ArgumentIterator iterator, OptionHelper helper) {
+            helper.transitive(true);
+        }
+    },
+    DEDUPE("-dedupe", "Also remove resources identical to the ones they fall back to") {
+        @Override
+        protected void processMatching(ArgumentIterator iterator, OptionHelper helper) {
+            helper.dedupe(true);
+        }
+    },
+    JOBS("-j", "Specify number of threads used for pruning") {
+        @Override
+        protected void processMatching(ArgumentIterator iterator, OptionHelper helper) {
+            Integer count = getIntArg(iterator, helper);
+            if (count != null) {
+                helper.parallelism(count);
+            }
+        }
+    },
+    PARALLEL("-parallel", "Use as many threads as available processors for pruning") {
+        @Override
+        protected void processMatching(ArgumentIterator iterator, OptionHelper helper) {
+            helper.parallelism(Runtime.getRuntime().availableProcessors());
+        }
+    },
+    IO_THREADS("-io", "Specify number of threads reading values files ahead of pruning and writing them behind it") {
+        @Override
+        protected void processMatching(ArgumentIterator iterator, OptionHelper helper) {
+            Integer count = getIntArg(iterator, helper);
+            if (count != null) {
+                helper.ioThreads(count);
+            }
+        }
+    },
+    IN_FLIGHT("-inflight", "Specify megabytes of values files read ahead of pruning and not yet written") {
+        @Override
+        protected void processMatching(ArgumentIterator iterator, OptionHelper helper) {
+            Integer megabytes = getIntArg(iterator, helper);
+            if (megabytes != null) {
+                helper.inFlight(megabytes);
+            }
+        }
+    },
+    DAEMON("-daemon", "Run as a daemon serving requests of clients connecting through the state dir") {
+        @Override
+        protected void processMatching(ArgumentIterator iterator, OptionHelper helper) {
+            Path path = getFileArg(iterator, helper, false, true);
+            if (path != null) {
+                helper.daemonDir(path);
+            }
+        }
+    },
+    CONNECT("-connect", "Forward the request to the daemon of the state dir if there is one") {
+        @Override
+        protected void processMatching(ArgumentIterator iterator, OptionHelper helper) {
+            Path path = getFileArg(iterator, helper, false, true);
+            if (path != null) {
+                helper.connectDir(path);
+            }
+        }
+    },
+    IDLE("-idle", "Specify seconds after which an idle daemon shuts down") {
+        @Override
+        protected void processMatching(ArgumentIterator iterator, OptionHelper helper) {
+            Integer seconds = getIntArg(iterator, helper);
+            if (seconds != null) {
+                helper.idleTimeout(seconds);
+            }
+        }
+    },
     LOG("-log:", "Specify logging level") {
         @Override
         protected void processMatching(ArgumentIterator iterator, OptionHelper helper) {
@@ -121,6 +281,30 @@ public enum Option {
         return iterator.next();
     }
 
+    /**
+     * Retrieve the next argument as a list of words separated by commas.
+     */
+    List<String> getNameListArg(ArgumentIterator iterator, OptionHelper helper) {
+        if (!iterator.hasNext() || !iterator.peek().matches("\\w+(,\\w+)*")) {
+            helper.reportError(arg + " must be followed by a list of words separated by ,");
+            return null;
+        }
+
+        return Arrays.asList(iterator.next().split(","));
+    }
+
+    /**
+     * Retrieve the next positive integer argument.
+     */
+    Integer getIntArg(ArgumentIterator iterator, OptionHelper helper) {
+        if (!iterator.hasNext() || !iterator.peek().matches("[1-9]\\d*")) {
+            helper.reportError(arg + " must be followed by a positive integer");
+            return null;
+        }
+
+        return Integer.valueOf(iterator.next());
+    }
+
     public boolean hasOption() {
         return arg.endsWith(":");
     }
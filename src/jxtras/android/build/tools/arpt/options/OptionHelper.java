@@ -28,15 +28,69 @@ public abstract class OptionHelper {
     /** Record locations of resources to be pruned */
     public abstract void resourceDirs(List<Path> path);
 
+    /** Record location of resources to be pruned out of place */
+    public abstract void inputDir(Path path);
+
+    /** Record location of the pruned resources */
+    public abstract void outputDir(Path path);
+
     /** Record desired log level */
     public abstract void logLevel(String level);
 
     /** Record target product name */
     public abstract void targetProduct(String name);
 
+    /** Record target product names to prune for in one go */
+    public abstract void targetProducts(List<String> names);
+
     /** Sets the path to rule file for pruning */
     public abstract void ruleFile(Path path);
 
+    /** Sets the path to the file listing the modules to be pruned */
+    public abstract void batchFile(Path path);
+
+    /** Sets the directory to cache compiled rule plans in */
+    public abstract void planCacheDir(Path path);
+
+    /** Sets the directory to cache pruned values files in */
+    public abstract void cacheDir(Path path);
+
+    /** Sets the megabytes the cache of pruned values files is trimmed to */
+    public abstract void cacheSize(int megabytes);
+
+    /** Sets the path to the manifest file for incremental pruning */
+    public abstract void manifestFile(Path path);
+
+    /** Sets the path to the file to write metrics to */
+    public abstract void metricsFile(Path path);
+
+    /** Record whether the log is written on a separate thread */
+    public abstract void asyncLog(boolean asyncLog);
+
+    /** Record whether resources only referenced by removed resources are removed too */
+    public abstract void transitive(boolean transitive);
+
+    /** Record whether resources identical to the ones they fall back to are removed too */
+    public abstract void dedupe(boolean dedupe);
+
+    /** Record number of threads used for pruning */
+    public abstract void parallelism(int count);
+
+    /** Record number of threads reading and writing values files, 0 if pruning threads do it themselves */
+    public abstract void ioThreads(int count);
+
+    /** Sets the megabytes of values files in flight between reading and writing them */
+    public abstract void inFlight(int megabytes);
+
+    /** Sets the state dir of the daemon to run */
+    public abstract void daemonDir(Path path);
+
+    /** Sets the state dir of the daemon to forward requests to */
+    public abstract void connectDir(Path path);
+
+    /** Record seconds after which an idle daemon shuts down */
+    public abstract void idleTimeout(int seconds);
+
     /**
      * Traverses an array of arguments and performs the appropriate callbacks.
      *
@@ -23,12 +23,55 @@ public class Options {
 
     private List<Path> resourceDirs = new ArrayList<>();
 
+    private Path inputDir;
+
+    private Path outputDir;
+
     private Path ruleFile;
 
+    private Path batchFile;
+
+    private Path planCacheDir;
+
+    private Path cacheDir;
+
+    private int cacheSize = 1024;
+
+    private Path manifestFile;
+
+    private Path metricsFile;
+
     private String logLevel = "info";
 
+    private boolean asyncLog;
+
     private String targetProduct;
 
+    private List<String> targetProducts = new ArrayList<>();
+
+    private boolean transitive;
+
+    private boolean dedupe;
+
+    private int parallelism = 1;
+
+    private int ioThreads;
+
+    private int inFlight = 64;
+
+    private Path daemonDir;
+
+    private Path connectDir;
+
+    private int idleTimeout = 600;
+
+    /** Relative paths are resolved against this dir if not null */
+    private final Path baseDir;
+
+    private Options(Path baseDir) {
+        this.baseDir = baseDir;
+    }
+
     /**
      * Get the target product name
      */
@@ -36,6 +79,13 @@ public class Options {
         return targetProduct;
     }
 
+    /**
+     * Get the target product names to prune for in one go
+     */
+    public List<String> getTargetProducts() {
+        return targetProducts;
+    }
+
     /**
      * Get the path to the rule file
      */
@@ -43,6 +93,49 @@ public class Options {
         return ruleFile;
     }
 
+    /**
+     * Get the path to the file listing the modules to be pruned, or null if
+     * not pruning in batch
+     */
+    public Path getBatchFile() {
+        return batchFile;
+    }
+
+    /**
+     * Get the directory to cache compiled rule plans in, or null if disabled
+     */
+    public Path getPlanCacheDir() {
+        return planCacheDir;
+    }
+
+    /**
+     * Get the directory to cache pruned values files in, or null if disabled
+     */
+    public Path getCacheDir() {
+        return cacheDir;
+    }
+
+    /**
+     * Get the megabytes the cache of pruned values files is trimmed to.
+     */
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Get the path to the manifest file for incremental pruning, or null if disabled
+     */
+    public Path getManifestFile() {
+        return manifestFile;
+    }
+
+    /**
+     * Get the path to the file to write metrics to, or null if disabled
+     */
+    public Path getMetricsFile() {
+        return metricsFile;
+    }
+
     /**
      * Get all resource locations for files to be pruned
      */
@@ -50,6 +143,21 @@ public class Options {
         return resourceDirs;
     }
 
+    /**
+     * Get the location of resources to be pruned out of place, or null if
+     * resources are pruned in place
+     */
+    public Path getInputDir() {
+        return inputDir;
+    }
+
+    /**
+     * Get the location of the pruned resources when pruning out of place
+     */
+    public Path getOutputDir() {
+        return outputDir;
+    }
+
     /**
      * Get the log level.
      */
@@ -57,15 +165,92 @@ public class Options {
         return logLevel;
     }
 
+    /**
+     * Whether the log is written on a separate thread.
+     */
+    public boolean isAsyncLog() {
+        return asyncLog;
+    }
+
+    /**
+     * Whether resources only referenced by removed resources are removed too.
+     */
+    public boolean isTransitive() {
+        return transitive;
+    }
+
+    /**
+     * Whether resources identical to the ones they fall back to are removed too.
+     */
+    public boolean isDedupe() {
+        return dedupe;
+    }
+
+    /**
+     * Get the number of threads used for pruning.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Get the number of threads reading and writing values files, 0 if the
+     * threads used for pruning do it themselves.
+     */
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    /**
+     * Get the megabytes of values files read but not yet written at most.
+     */
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Get the state dir of the daemon to run, or null if not running as daemon
+     */
+    public Path getDaemonDir() {
+        return daemonDir;
+    }
+
+    /**
+     * Get the state dir of the daemon to forward requests to, or null if
+     * requests are handled in process
+     */
+    public Path getConnectDir() {
+        return connectDir;
+    }
+
+    /**
+     * Get the seconds after which an idle daemon shuts down.
+     */
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
     /**
      * Parses the given argument array and returns a corresponding Options instance.
      */
     public static Options parseArgs(String... args) {
-        Options options = new Options();
+        return parseArgs(null, args);
+    }
+
+    /**
+     * Same as {@link #parseArgs(String...)}, but relative paths are resolved
+     * against the given dir, e.g. the working dir of a daemon client.
+     */
+    public static Options parseArgs(Path baseDir, String... args) {
+        Options options = new Options(baseDir);
         options.new ArgDecoderOptionHelper().traverse(args);
         return options;
     }
 
+    private Path resolve(Path path) {
+        return baseDir != null ? baseDir.resolve(path) : path;
+    }
+
     // OptionHelper that records the traversed options in this Options instance.
     private class ArgDecoderOptionHelper extends OptionHelper {
 
@@ -76,7 +261,19 @@ public class Options {
 
         @Override
         public void resourceDirs(List<Path> paths) {
-            resourceDirs.addAll(paths);
+            for (Path path : paths) {
+                resourceDirs.add(resolve(path));
+            }
+        }
+
+        @Override
+        public void inputDir(Path path) {
+            inputDir = resolve(path);
+        }
+
+        @Override
+        public void outputDir(Path path) {
+            outputDir = resolve(path);
         }
 
         @Override
@@ -89,9 +286,93 @@ public class Options {
             targetProduct = name;
         }
 
+        @Override
+        public void targetProducts(List<String> names) {
+            for (String name : names) {
+                if (!targetProducts.contains(name)) {
+                    targetProducts.add(name);
+                }
+            }
+        }
+
         @Override
         public void ruleFile(Path path) {
-            ruleFile = path;
+            ruleFile = resolve(path);
+        }
+
+        @Override
+        public void batchFile(Path path) {
+            batchFile = resolve(path);
+        }
+
+        @Override
+        public void planCacheDir(Path path) {
+            planCacheDir = resolve(path);
+        }
+
+        @Override
+        public void cacheDir(Path path) {
+            cacheDir = resolve(path);
+        }
+
+        @Override
+        public void cacheSize(int megabytes) {
+            cacheSize = megabytes;
+        }
+
+        @Override
+        public void manifestFile(Path path) {
+            manifestFile = resolve(path);
+        }
+
+        @Override
+        public void metricsFile(Path path) {
+            metricsFile = resolve(path);
+        }
+
+        @Override
+        public void asyncLog(boolean value) {
+            asyncLog = value;
+        }
+
+        @Override
+        public void transitive(boolean value) {
+            transitive = value;
+        }
+
+        @Override
+        public void dedupe(boolean value) {
+            dedupe = value;
+        }
+
+        @Override
+        public void parallelism(int count) {
+            parallelism = count;
+        }
+
+        @Override
+        public void ioThreads(int count) {
+            ioThreads = count;
+        }
+
+        @Override
+        public void inFlight(int megabytes) {
+            inFlight = megabytes;
+        }
+
+        @Override
+        public void daemonDir(Path path) {
+            daemonDir = resolve(path);
+        }
+
+        @Override
+        public void connectDir(Path path) {
+            connectDir = resolve(path);
+        }
+
+        @Override
+        public void idleTimeout(int seconds) {
+            idleTimeout = seconds;
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2022 Tony Guo. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jxtras.android.build.tools.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+
+/**
+ * Utility class for the file operations shared by arpt.
+ */
+public class FileUtils {
+
+    private FileUtils() {
+    }
+
+    /**
+     * Writes the remaining bytes of the given buffers to the target file with a
+     * single gather-write. The content is written to a temporary file next to
+     * the target first, which then replaces the target atomically if possible,
+     * so readers never see a partially written file and hard links to the old
+     * target are left untouched.
+     */
+    static public void write(Path target, ByteBuffer... buffers) throws IOException {
+        write(target, target, buffers);
+    }
+
+    /**
+     * Same as {@link #write(Path, ByteBuffer...)}, but the permissions of the
+     * target file are copied from the given template file.
+     */
+    static public void write(Path target, Path template, ByteBuffer... buffers) throws IOException {
+        final Path dir = target.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        final Path temp = Files.createTempFile(dir, "." + target.getFileName(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                final ByteBuffer[] ranges = new ByteBuffer[buffers.length];
+                long remaining = 0;
+                for (int i = 0; i < buffers.length; i++) {
+                    ranges[i] = buffers[i].duplicate();
+                    remaining += ranges[i].remaining();
+                }
+                while (remaining > 0) {
+                    remaining -= channel.write(ranges);
+                }
+            }
+            copyPermissions(template, temp);
+            move(temp, target);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Same as {@link #write(Path, Path, ByteBuffer...)}, but leaves the target file
+     * (and thus its modification time) untouched if it already has the given
+     * content.
+     *
+     * @return true if the target file was written.
+     */
+    static public boolean writeIfChanged(Path target, Path template, ByteBuffer... buffers) throws IOException {
+        if (contentEquals(target, buffers)) {
+            return false;
+        }
+        write(target, template, buffers);
+        return true;
+    }
+
+    /**
+     * Returns whether the given file exists and its content equals the
+     * remaining bytes of the given buffers.
+     */
+    static public boolean contentEquals(Path file, ByteBuffer... buffers) throws IOException {
+        long size = 0;
+        for (ByteBuffer buffer : buffers) {
+            size += buffer.remaining();
+        }
+        if (!Files.isRegularFile(file) || Files.size(file) != size) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+            for (ByteBuffer buffer : buffers) {
+                final ByteBuffer expected = buffer.duplicate();
+                while (expected.hasRemaining()) {
+                    chunk.clear();
+                    chunk.limit(Math.min(chunk.capacity(), expected.remaining()));
+                    while (chunk.hasRemaining()) {
+                        if (channel.read(chunk) < 0) {
+                            return false;
+                        }
+                    }
+                    chunk.flip();
+                    final ByteBuffer part = expected.duplicate();
+                    part.limit(part.position() + chunk.remaining());
+                    if (!part.equals(chunk)) {
+                        return false;
+                    }
+                    expected.position(part.limit());
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Makes the target file a hard link of the source file, falling back to a
+     * copy (with the modification time preserved) where hard links are not
+     * supported. A target which already is the source file or a copy of it
+     * with the same size and modification time is left untouched.
+     */
+    static public void linkOrCopy(Path source, Path target) throws IOException {
+        if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+            if (Files.isSameFile(source, target) || isSameStamp(source, target)) {
+                return;
+            }
+            Files.delete(target);
+        } else {
+            Files.createDirectories(target.toAbsolutePath().getParent());
+        }
+        try {
+            Files.createLink(target, source);
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(source, target, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static boolean isSameStamp(Path a, Path b) throws IOException {
+        final BasicFileAttributes attrsA = Files.readAttributes(a, BasicFileAttributes.class);
+        final BasicFileAttributes attrsB = Files.readAttributes(b, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        return attrsB.isRegularFile()
+                && attrsA.size() == attrsB.size()
+                && attrsA.lastModifiedTime().equals(attrsB.lastModifiedTime());
+    }
+
+    /**
+     * Moves the source file to the target, atomically if supported by the
+     * file system.
+     */
+    static public void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Deletes the given directory together with everything below it.
+     */
+    static public void deleteRecursively(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Deletes the given file if it exists, ignoring any failure.
+     */
+    static public void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ignored) {
+            // best effort
+        }
+    }
+
+    private static void copyPermissions(Path source, Path target) {
+        try {
+            final PosixFileAttributeView view = Files.getFileAttributeView(target, PosixFileAttributeView.class);
+            if (view != null && Files.exists(source)) {
+                view.setPermissions(Files.getPosixFilePermissions(source));
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            // keep the default permissions of the temporary file
+        }
+    }
+}
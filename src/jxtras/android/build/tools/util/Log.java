@@ -15,16 +15,40 @@
  */
 package jxtras.android.build.tools.util;
 
+import jxtras.android.build.tools.annotation.NonNull;
+
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
 /**
  * Utility class only for arpt logging.
  * <p>
  * The log level can be set using for example -log:DEBUG on the arpt command line.
+ * <p>
+ * Messages which are costly to build should be logged with a {@link Supplier}
+ * or a template like {@code "arpt: removing: {}"}, which are only evaluated if
+ * the level is enabled. With {@link #startAsync(int)}, messages are handed to
+ * a single writer thread through a bounded queue and written in batches, so
+ * threads logging concurrently neither wait for each other nor for the
+ * console; the order of the messages is kept.
+ * <p>
+ * Processes embedding arpt may receive its messages through a {@link Sink} of
+ * their own instead, with a level of their own, see {@link #withSink(Sink,
+ * int, Supplier)}.
  */
 public class Log {
     private static PrintStream out, err;
 
+    public final static int ERROR = 0;
     public final static int WARN = 1;
     public final static int INFO = 2;
     public final static int TIMING = 3;
@@ -32,36 +56,286 @@ public class Log {
     public final static int TRACE = 5;
     private static int level = WARN;
 
+    private static final ThreadLocal<Buffer> buffers = new ThreadLocal<>();
+    private static final ThreadLocal<Context> contexts = new ThreadLocal<>();
+    /** Whether a sink was ever used, so that threads without one don't look it up */
+    private static volatile boolean scoped;
+    private static volatile AsyncWriter writer;
+
+    /** Writes messages to the streams set by {@link #initializeLog}, as if there was no sink */
+    public static final Sink STREAMS = Log::write;
+
     static public void trace(String msg) {
-        if (level >= TRACE) {
-            out.println(msg);
+        if (isEnabled(TRACE)) {
+            emit(TRACE, msg);
         }
     }
 
     static public void debug(String msg) {
-        if (level >= DEBUG) {
-            out.println(msg);
+        if (isEnabled(DEBUG)) {
+            emit(DEBUG, msg);
         }
     }
 
     static public void timing(String msg) {
-        if (level >= TIMING) {
-            out.println(msg);
+        if (isEnabled(TIMING)) {
+            emit(TIMING, msg);
         }
     }
 
     static public void info(String msg) {
-        if (level >= INFO) {
-            out.println(msg);
+        if (isEnabled(INFO)) {
+            emit(INFO, msg);
+        }
+    }
+
+    static public void trace(Supplier<String> msg) {
+        if (isEnabled(TRACE)) {
+            emit(TRACE, msg.get());
+        }
+    }
+
+    static public void debug(Supplier<String> msg) {
+        if (isEnabled(DEBUG)) {
+            emit(DEBUG, msg.get());
+        }
+    }
+
+    static public void timing(Supplier<String> msg) {
+        if (isEnabled(TIMING)) {
+            emit(TIMING, msg.get());
+        }
+    }
+
+    static public void info(Supplier<String> msg) {
+        if (isEnabled(INFO)) {
+            emit(INFO, msg.get());
+        }
+    }
+
+    static public void debug(String template, Object arg) {
+        if (isEnabled(DEBUG)) {
+            emit(DEBUG, format(template, arg, null, null));
+        }
+    }
+
+    static public void debug(String template, Object arg1, Object arg2) {
+        if (isEnabled(DEBUG)) {
+            emit(DEBUG, format(template, arg1, arg2, null));
+        }
+    }
+
+    static public void info(String template, Object arg) {
+        if (isEnabled(INFO)) {
+            emit(INFO, format(template, arg, null, null));
+        }
+    }
+
+    static public void info(String template, Object arg1, Object arg2) {
+        if (isEnabled(INFO)) {
+            emit(INFO, format(template, arg1, arg2, null));
         }
     }
 
+    static public void info(String template, Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(INFO)) {
+            emit(INFO, format(template, arg1, arg2, arg3));
+        }
+    }
+
+    /**
+     * Replaces the placeholders {@code {}} of the template by the given
+     * arguments in order.
+     */
+    static private String format(String template, Object arg1, Object arg2, Object arg3) {
+        final StringBuilder result = new StringBuilder(template.length() + 64);
+        int position = 0;
+        for (int i = 0; i < 3; i++) {
+            final int index = template.indexOf("{}", position);
+            if (index < 0) {
+                break;
+            }
+            result.append(template, position, index).append(i == 0 ? arg1 : i == 1 ? arg2 : arg3);
+            position = index + 2;
+        }
+        return result.append(template, position, template.length()).toString();
+    }
+
     static public void warn(String msg) {
-        err.println(msg);
+        emit(WARN, msg);
     }
 
     static public void error(String msg) {
-        err.println(msg);
+        emit(ERROR, msg);
+    }
+
+    static private void emit(int l, String msg) {
+        final Buffer buffer = buffers.get();
+        if (buffer != null) {
+            buffer.add(l, msg);
+            return;
+        }
+        if (scoped) {
+            final Context context = contexts.get();
+            if (context != null) {
+                context.sink.log(l, msg);
+                return;
+            }
+        }
+        write(l, msg);
+    }
+
+    static private void write(int l, String msg) {
+        final PrintStream stream = l <= WARN ? err : out;
+        final AsyncWriter current = writer;
+        if (current == null || !current.write(stream, msg)) {
+            stream.println(msg);
+        }
+    }
+
+    /**
+     * Returns whether messages of the given level are logged on the current
+     * thread.
+     */
+    static public boolean isEnabled(int l) {
+        return getLogLevel() >= l;
+    }
+
+    /**
+     * Runs the given task with everything it logs on the current thread, and
+     * on the threads of tasks submitted with {@link #captured(Runnable)}, sent
+     * to the given sink at the given level instead of the streams, e.g. to
+     * embed arpt in a process with a logger of its own.
+     */
+    static public <T> T withSink(@NonNull Sink sink, int l, @NonNull Supplier<T> task) {
+        scoped = true;
+        final Context previous = contexts.get();
+        contexts.set(new Context(sink, l));
+        try {
+            return task.get();
+        } finally {
+            restore(previous);
+        }
+    }
+
+    private static void restore(Context previous) {
+        if (previous != null) {
+            contexts.set(previous);
+        } else {
+            contexts.remove();
+        }
+    }
+
+    /**
+     * Writes all messages logged from now on asynchronously, see the class
+     * documentation. Up to the given number of messages are queued, threads
+     * logging more messages wait until there is room.
+     */
+    static public synchronized void startAsync(int capacity) {
+        if (writer == null) {
+            writer = new AsyncWriter(capacity);
+            writer.start();
+        }
+    }
+
+    /**
+     * Waits until all messages logged so far are written.
+     */
+    static public void flush() {
+        final AsyncWriter current = writer;
+        if (current != null) {
+            current.sync(false);
+        }
+    }
+
+    /**
+     * Writes all messages logged so far and stops writing asynchronously.
+     */
+    static public synchronized void close() {
+        final AsyncWriter current = writer;
+        if (current != null) {
+            writer = null;
+            current.sync(true);
+        }
+    }
+
+    /**
+     * Get a task to be submitted to another thread, which runs the given task
+     * as if on the current thread (with the same sink and level, see {@link
+     * #withSink(Sink, int, Supplier)}) and captures what it logs, see {@link
+     * #capture(Runnable)}.
+     */
+    static public Callable<Buffer> captured(@NonNull Runnable task) {
+        final Runnable scopedTask = inContext(task);
+        return () -> capture(scopedTask);
+    }
+
+    /**
+     * Get a task to be submitted to another thread, which runs the given task
+     * with the sink and level of the current thread, see {@link
+     * #withSink(Sink, int, Supplier)}.
+     */
+    static public Runnable inContext(@NonNull Runnable task) {
+        final Context context = scoped ? contexts.get() : null;
+        if (context == null) {
+            return task;
+        }
+        return () -> {
+            final Context previous = contexts.get();
+            contexts.set(context);
+            try {
+                task.run();
+            } finally {
+                restore(previous);
+            }
+        };
+    }
+
+    /**
+     * Runs the given task and captures everything it logs on the current
+     * thread instead of printing it, so that the output of tasks running
+     * concurrently can be flushed in a fixed order afterwards.
+     */
+    static public Buffer capture(Runnable task) {
+        return capture(new Buffer(), task);
+    }
+
+    /**
+     * Get a task to be submitted to another thread, which runs the given task
+     * as if on the current thread, see {@link #inContext(Runnable)}. If what
+     * the current thread logs is captured, what the task logs is captured as
+     * well and flushed with it, as if logged at this point, so it keeps its
+     * order even if the task finishes after the current one.
+     */
+    static public Runnable deferred(@NonNull Runnable task) {
+        final Buffer buffer = buffers.get();
+        final Runnable scopedTask = inContext(task);
+        if (buffer == null) {
+            return scopedTask;
+        }
+        final Buffer part = buffer.defer();
+        return () -> {
+            try {
+                capture(part, scopedTask);
+            } finally {
+                part.done.countDown();
+            }
+        };
+    }
+
+    private static Buffer capture(Buffer buffer, Runnable task) {
+        final Buffer previous = buffers.get();
+        buffers.set(buffer);
+        try {
+            task.run();
+        } finally {
+            if (previous != null) {
+                buffers.set(previous);
+            } else {
+                buffers.remove();
+            }
+        }
+        return buffer;
     }
 
     static public void initializeLog(PrintStream o, PrintStream e) {
@@ -70,22 +344,266 @@ public class Log {
     }
 
     static public void setLogLevel(String l) {
+        level = parseLevel(l);
+    }
+
+    /**
+     * Get the level messages are logged at on the current thread, see {@link
+     * #isEnabled(int)}.
+     */
+    static public int getLogLevel() {
+        if (scoped) {
+            final Context context = contexts.get();
+            if (context != null) {
+                return context.level;
+            }
+        }
+        return level;
+    }
+
+    /**
+     * Get the level of the given name, e.g. {@code "info"} for {@link #INFO}.
+     */
+    static public int parseLevel(String l) {
         switch (l) {
-            case "warn": level = WARN; break;
-            case "info": level = INFO; break;
-            case "timing": level = TIMING; break;
-            case "debug": level = DEBUG; break;
-            case "trace": level = TRACE; break;
+            case "warn": return WARN;
+            case "info": return INFO;
+            case "timing": return TIMING;
+            case "debug": return DEBUG;
+            case "trace": return TRACE;
             default:
                 throw new IllegalArgumentException("No such log level \"" + l + "\"");
         }
     }
 
     static public boolean isTracing() {
-        return level >= TRACE;
+        return isEnabled(TRACE);
     }
 
     static public boolean isDebugging() {
-        return level >= DEBUG;
+        return isEnabled(DEBUG);
+    }
+
+    static public boolean isTiming() {
+        return isEnabled(TIMING);
+    }
+
+    static public boolean isInfo() {
+        return isEnabled(INFO);
+    }
+
+    /**
+     * Receives the messages logged within {@link #withSink(Sink, int, Supplier)}.
+     */
+    public interface Sink {
+        /**
+         * @param level the level of the message, {@link #ERROR} or {@link #WARN}
+         *              for errors and warnings.
+         */
+        void log(int level, @NonNull String msg);
+    }
+
+    private static final class Context {
+        final Sink sink;
+        final int level;
+
+        Context(Sink sink, int level) {
+            this.sink = sink;
+            this.level = level;
+        }
+    }
+
+    /**
+     * Writes the messages queued by all threads on a single thread, batching
+     * consecutive messages to the same stream into one write.
+     * <p>
+     * Once closed, nothing more is queued: the stop message is queued under
+     * the write lock while messages are queued under the read lock, so it's
+     * always the last one, and threads logging afterwards wait for the writer
+     * to finish and then write to the stream themselves, which keeps the order
+     * of their messages.
+     */
+    private static final class AsyncWriter extends Thread {
+        private static final String LINE_SEPARATOR = System.lineSeparator();
+
+        private final BlockingQueue<Message> queue;
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        /** Whether the stop message is queued, guarded by the lock */
+        private boolean closed;
+
+        AsyncWriter(int capacity) {
+            super("arpt-log");
+            setDaemon(true);
+            queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        }
+
+        /**
+         * @return false if the message can't be queued and should be written
+         * right away.
+         */
+        boolean write(PrintStream stream, String msg) {
+            try {
+                lock.readLock().lock();
+                try {
+                    if (!closed) {
+                        queue.put(new Message(stream, msg, null, false));
+                        return true;
+                    }
+                } finally {
+                    lock.readLock().unlock();
+                }
+                if (Thread.currentThread() != this) {
+                    join();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+
+        void sync(boolean stop) {
+            final CountDownLatch latch = new CountDownLatch(1);
+            final Lock current = stop ? lock.writeLock() : lock.readLock();
+            try {
+                current.lock();
+                try {
+                    if (closed) {
+                        return;
+                    }
+                    closed = stop;
+                    queue.put(new Message(null, null, latch, stop));
+                } finally {
+                    current.unlock();
+                }
+                latch.await();
+                if (stop) {
+                    join();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            final List<Message> batch = new ArrayList<>();
+            final StringBuilder text = new StringBuilder();
+            CountDownLatch stopped = null;
+            while (stopped == null || !queue.isEmpty()) {
+                if (stopped == null) {
+                    try {
+                        batch.add(queue.take());
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                // anything queued after the stop message is written as well
+                queue.drainTo(batch);
+                PrintStream stream = null;
+                for (Message message : batch) {
+                    if (message.stream != stream && stream != null) {
+                        stream.print(text);
+                        stream.flush();
+                        text.setLength(0);
+                    }
+                    stream = message.stream;
+                    if (stream != null) {
+                        text.append(message.text).append(LINE_SEPARATOR);
+                    }
+                    if (message.stop) {
+                        stopped = message.latch;
+                    } else if (message.latch != null) {
+                        message.latch.countDown();
+                    }
+                }
+                if (stream != null) {
+                    stream.print(text);
+                    stream.flush();
+                    text.setLength(0);
+                }
+                batch.clear();
+            }
+            stopped.countDown();
+        }
+    }
+
+    private static final class Message {
+        final PrintStream stream;
+        final String text;
+        final CountDownLatch latch;
+        final boolean stop;
+
+        Message(PrintStream stream, String text, CountDownLatch latch, boolean stop) {
+            this.stream = stream;
+            this.text = text;
+            this.latch = latch;
+            this.stop = stop;
+        }
+    }
+
+    /**
+     * Log messages captured by {@link #capture(Runnable)}.
+     */
+    public static final class Buffer {
+        /** The level of the parts of deferred tasks, see {@link #deferred(Runnable)} */
+        private static final int DEFERRED = Integer.MIN_VALUE;
+
+        private final List<Integer> levels = new ArrayList<>();
+        private final List<String> messages = new ArrayList<>();
+        private final List<Buffer> parts = new ArrayList<>();
+        /** Counted down once the deferred task capturing into the buffer is done */
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private Buffer() {
+        }
+
+        private void add(int l, String msg) {
+            levels.add(l);
+            messages.add(msg);
+        }
+
+        private Buffer defer() {
+            final Buffer part = new Buffer();
+            levels.add(DEFERRED);
+            messages.add(null);
+            parts.add(part);
+            return part;
+        }
+
+        /**
+         * Returns whether all deferred tasks logging into the buffer are done,
+         * so that {@link #flush()} doesn't wait for them.
+         */
+        public boolean isComplete() {
+            for (Buffer part : parts) {
+                if (part.done.getCount() > 0 || !part.isComplete()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Logs all captured messages in the order they were logged, waiting
+         * for the deferred tasks logging into the buffer to be done.
+         */
+        public void flush() {
+            for (int i = 0, part = 0, size = messages.size(); i < size; i++) {
+                if (levels.get(i) != DEFERRED) {
+                    emit(levels.get(i), messages.get(i));
+                    continue;
+                }
+                final Buffer current = parts.get(part++);
+                try {
+                    current.done.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                current.flush();
+            }
+            levels.clear();
+            messages.clear();
+            parts.clear();
+        }
     }
-}
\ No newline at end of file
+}
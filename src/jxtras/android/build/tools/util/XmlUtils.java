@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2022 Tony Guo. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jxtras.android.build.tools.util;
+
+import jxtras.android.build.tools.annotation.NonNull;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Parses and serializes XML documents for arpt.
+ * <p>
+ * The JAXP factories are looked up once, and each thread reuses its own
+ * {@link DocumentBuilder} and {@link Transformer}, which are reset after each
+ * use. DTDs and external entities are never loaded, resource and rule files
+ * don't need them.
+ */
+public final class XmlUtils {
+    private static final DocumentBuilderFactory documentBuilderFactory = newDocumentBuilderFactory();
+    private static final TransformerFactory transformerFactory = newTransformerFactory();
+
+    private static final ThreadLocal<DocumentBuilder> documentBuilders = ThreadLocal.withInitial(() -> {
+        try {
+            synchronized (documentBuilderFactory) {
+                return documentBuilderFactory.newDocumentBuilder();
+            }
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private static final ThreadLocal<Transformer> transformers = ThreadLocal.withInitial(() -> {
+        try {
+            synchronized (transformerFactory) {
+                return transformerFactory.newTransformer();
+            }
+        } catch (TransformerConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private XmlUtils() {
+    }
+
+    /**
+     * Parses the given file into a document.
+     */
+    public static @NonNull Document parse(@NonNull File file) throws IOException, SAXException {
+        final DocumentBuilder documentBuilder = documentBuilders.get();
+        try {
+            return documentBuilder.parse(file);
+        } finally {
+            documentBuilder.reset();
+        }
+    }
+
+    /**
+     * Parses the given stream into a document, e.g. an entry of an archive.
+     */
+    public static @NonNull Document parse(@NonNull InputStream in) throws IOException, SAXException {
+        final DocumentBuilder documentBuilder = documentBuilders.get();
+        try {
+            return documentBuilder.parse(in);
+        } finally {
+            documentBuilder.reset();
+        }
+    }
+
+    /**
+     * Serializes the given document as UTF-8 without indenting it.
+     */
+    public static @NonNull byte[] serialize(@NonNull Document document) throws TransformerException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final Transformer transformer = transformers.get();
+        try {
+            transformer.setOutputProperty(OutputKeys.METHOD, "xml");
+            transformer.setOutputProperty(OutputKeys.ENCODING, "utf-8");
+            transformer.setOutputProperty(OutputKeys.INDENT, "no");
+            transformer.transform(new DOMSource(document), new StreamResult(bytes));
+        } finally {
+            transformer.reset();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static DocumentBuilderFactory newDocumentBuilderFactory() {
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setValidating(false);
+        factory.setXIncludeAware(false);
+        setFeature(factory, XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        setFeature(factory, "http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        setFeature(factory, "http://xml.org/sax/features/external-general-entities", false);
+        setFeature(factory, "http://xml.org/sax/features/external-parameter-entities", false);
+        return factory;
+    }
+
+    private static void setFeature(DocumentBuilderFactory factory, String feature, boolean value) {
+        try {
+            factory.setFeature(feature, value);
+        } catch (ParserConfigurationException e) {
+            Log.debug("arpt: XML parser doesn't support feature: {}", feature);
+        }
+    }
+
+    private static TransformerFactory newTransformerFactory() {
+        final TransformerFactory factory = TransformerFactory.newInstance();
+        try {
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        } catch (TransformerConfigurationException e) {
+            Log.debug("arpt: XML transformer doesn't support secure processing");
+        }
+        return factory;
+    }
+}
@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2022 Tony Guo. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jxtras.android.build.tools.util;
+
+import jxtras.android.build.tools.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Reads the entries of a zip archive from its central directory, and writes
+ * archives whose entries are either copied raw from another archive, with
+ * their compressed bytes and CRCs reused, or compressed from new content.
+ * <p>
+ * Only what resource archives need is supported: archives spanning several
+ * disks and zip64 archives (more than 65535 entries or 4 GB) are rejected,
+ * and entries are written without data descriptors.
+ */
+public final class ZipArchive implements Closeable {
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    /** General purpose flag of entries followed by a data descriptor */
+    private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+    /**
+     * An entry of the central directory.
+     */
+    public static final class Entry {
+        private final String name;
+        private final byte[] rawName;
+        private final int versionMadeBy;
+        private final int versionNeeded;
+        private final int flags;
+        private final int method;
+        private final int time;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final byte[] extra;
+        private final byte[] comment;
+        private final int internalAttributes;
+        private final long externalAttributes;
+        private final long localHeaderOffset;
+
+        private Entry(ByteBuffer header, byte[] rawName, byte[] extra, byte[] comment) {
+            this.rawName = rawName;
+            this.name = new String(rawName, StandardCharsets.UTF_8);
+            this.versionMadeBy = u16(header, 4);
+            this.versionNeeded = u16(header, 6);
+            this.flags = u16(header, 8);
+            this.method = u16(header, 10);
+            this.time = header.getInt(12);
+            this.crc = u32(header, 16);
+            this.compressedSize = u32(header, 20);
+            this.size = u32(header, 24);
+            this.extra = extra;
+            this.comment = comment;
+            this.internalAttributes = u16(header, 36);
+            this.externalAttributes = u32(header, 38);
+            this.localHeaderOffset = u32(header, 42);
+        }
+
+        /**
+         * Get the name of the entry, e.g. {@code values/strings.xml}.
+         */
+        public @NonNull String getName() {
+            return name;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+    private final Path file;
+    private final FileChannel channel;
+    private final List<Entry> entries;
+    private final byte[] comment;
+
+    private ZipArchive(Path file, FileChannel channel, List<Entry> entries, byte[] comment) {
+        this.file = file;
+        this.channel = channel;
+        this.entries = entries;
+        this.comment = comment;
+    }
+
+    /**
+     * Opens the given archive and reads its central directory.
+     */
+    public static @NonNull ZipArchive open(@NonNull Path file) throws IOException {
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            final long size = channel.size();
+            final int tail = (int) Math.min(size, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+            final ByteBuffer buffer = read(channel, size - tail, tail);
+            int end = -1;
+            for (int i = tail - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+                if (buffer.getInt(i) == END_OF_CENTRAL_DIRECTORY
+                        && i + END_OF_CENTRAL_DIRECTORY_SIZE + u16(buffer, i + 20) == tail) {
+                    end = i;
+                    break;
+                }
+            }
+            if (end < 0) {
+                throw new IOException("not a zip archive: " + file);
+            }
+            final int count = u16(buffer, end + 10);
+            final long directorySize = u32(buffer, end + 12);
+            final long directoryOffset = u32(buffer, end + 16);
+            if (u16(buffer, end + 4) != 0 || u16(buffer, end + 6) != 0 || count != u16(buffer, end + 8)) {
+                throw new IOException("zip archives spanning several disks are not supported: " + file);
+            }
+            if (count == 0xffff || directorySize == 0xffffffffL || directoryOffset == 0xffffffffL) {
+                throw new IOException("zip64 archives are not supported: " + file);
+            }
+            final byte[] comment = new byte[u16(buffer, end + 20)];
+            ((ByteBuffer) buffer.duplicate().position(end + END_OF_CENTRAL_DIRECTORY_SIZE)).get(comment);
+
+            final ByteBuffer directory = read(channel, directoryOffset, (int) directorySize);
+            final List<Entry> entries = new ArrayList<>(count);
+            int position = 0;
+            for (int i = 0; i < count; i++) {
+                if (position + CENTRAL_HEADER_SIZE > directorySize || directory.getInt(position) != CENTRAL_HEADER) {
+                    throw new IOException("corrupt central directory: " + file);
+                }
+                final ByteBuffer header = ((ByteBuffer) directory.duplicate().position(position)).slice()
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                position += CENTRAL_HEADER_SIZE;
+                final byte[] name = new byte[u16(header, 28)];
+                final byte[] extra = new byte[u16(header, 30)];
+                final byte[] entryComment = new byte[u16(header, 32)];
+                if (position + name.length + extra.length + entryComment.length > directorySize) {
+                    throw new IOException("corrupt central directory: " + file);
+                }
+                final ByteBuffer fields = (ByteBuffer) directory.duplicate().position(position);
+                fields.get(name).get(extra).get(entryComment);
+                position = fields.position();
+                entries.add(new Entry(header, name, extra, entryComment));
+            }
+            return new ZipArchive(file, channel, Collections.unmodifiableList(entries), comment);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the entries in the order of the central directory.
+     */
+    public @NonNull List<Entry> getEntries() {
+        return entries;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Get the offset of the compressed data of the given entry, which follows
+     * its local header.
+     */
+    private long getDataOffset(Entry entry) throws IOException {
+        final ByteBuffer header = read(channel, entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER) {
+            throw new IOException("corrupt local header: " + file + "!" + entry.name);
+        }
+        return entry.localHeaderOffset + LOCAL_HEADER_SIZE + u16(header, 26) + u16(header, 28);
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("unexpected end of zip archive");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int u16(ByteBuffer buffer, int index) {
+        return buffer.getShort(index) & 0xffff;
+    }
+
+    private static long u32(ByteBuffer buffer, int index) {
+        return buffer.getInt(index) & 0xffffffffL;
+    }
+
+    /**
+     * Writes a new archive, which replaces the target file atomically on
+     * {@link #finish()} (see {@link FileUtils#move(Path, Path)}). Closing a
+     * writer which isn't finished discards what has been written.
+     */
+    public static final class Writer implements Closeable {
+        private final Path target;
+        private final Path temp;
+        private final FileChannel channel;
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        private ByteBuffer central = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        private byte[] comment = new byte[0];
+        private long offset;
+        private int count;
+        private boolean finished;
+
+        public Writer(@NonNull Path target) throws IOException {
+            this.target = target;
+            final Path dir = target.toAbsolutePath().getParent();
+            Files.createDirectories(dir);
+            this.temp = Files.createTempFile(dir, "." + target.getFileName(), ".tmp");
+            this.channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+        }
+
+        /**
+         * Sets the comment of the archive, e.g. the one of the source archive.
+         */
+        public void setComment(@NonNull ZipArchive archive) {
+            this.comment = archive.comment;
+        }
+
+        /**
+         * Copies the given entry of the given archive without decompressing
+         * it.
+         */
+        public void copy(@NonNull ZipArchive archive, @NonNull Entry entry) throws IOException {
+            final long dataOffset = archive.getDataOffset(entry);
+            final long localHeaderOffset = writeLocalHeader(entry, entry.flags, entry.method, entry.crc,
+                    entry.compressedSize, entry.size);
+            long position = dataOffset;
+            final long end = dataOffset + entry.compressedSize;
+            while (position < end) {
+                final long transferred = archive.channel.transferTo(position, end - position, channel);
+                if (transferred <= 0) {
+                    throw new IOException("unexpected end of zip archive: " + archive.file + "!" + entry.name);
+                }
+                position += transferred;
+            }
+            offset += entry.compressedSize;
+            addCentralHeader(entry, entry.flags, entry.versionNeeded, entry.method, entry.crc,
+                    entry.compressedSize, entry.size, localHeaderOffset);
+        }
+
+        /**
+         * Writes the given content as the given entry, compressed unless the
+         * entry is stored uncompressed.
+         */
+        public void write(@NonNull Entry entry, @NonNull ByteBuffer... content) throws IOException {
+            int size = 0;
+            for (ByteBuffer buffer : content) {
+                size += buffer.remaining();
+            }
+            final byte[] bytes = new byte[size];
+            final ByteBuffer all = ByteBuffer.wrap(bytes);
+            for (ByteBuffer buffer : content) {
+                all.put(buffer.duplicate());
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(bytes);
+
+            final int method = entry.method == STORED ? STORED : DEFLATED;
+            final ByteBuffer data;
+            if (method == STORED) {
+                data = ByteBuffer.wrap(bytes);
+            } else {
+                deflater.reset();
+                deflater.setInput(bytes);
+                deflater.finish();
+                byte[] out = new byte[Math.max(64, size / 2)];
+                int length = 0;
+                while (!deflater.finished()) {
+                    if (length == out.length) {
+                        final byte[] grown = new byte[out.length * 2];
+                        System.arraycopy(out, 0, grown, 0, length);
+                        out = grown;
+                    }
+                    length += deflater.deflate(out, length, out.length - length);
+                }
+                data = ByteBuffer.wrap(out, 0, length);
+            }
+
+            // the compression option bits only describe the compressed data they were written with
+            final int flags = entry.flags & ~0x6;
+            final long compressedSize = data.remaining();
+            final long localHeaderOffset = writeLocalHeader(entry, flags, method, crc.getValue(), compressedSize, size);
+            writeFully(data);
+            offset += compressedSize;
+            addCentralHeader(entry, flags, Math.max(entry.versionNeeded, method == DEFLATED ? 20 : 10), method,
+                    crc.getValue(), compressedSize, size, localHeaderOffset);
+        }
+
+        /**
+         * Writes the central directory and moves the archive into place.
+         */
+        public void finish() throws IOException {
+            final long directoryOffset = offset;
+            central.flip();
+            final long directorySize = central.remaining();
+            writeFully(central);
+            final ByteBuffer end = ByteBuffer.allocate(END_OF_CENTRAL_DIRECTORY_SIZE + comment.length)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            end.putInt(END_OF_CENTRAL_DIRECTORY).putShort((short) 0).putShort((short) 0)
+                    .putShort((short) count).putShort((short) count)
+                    .putInt((int) directorySize)
+                    .putInt((int) checkOffset(directoryOffset + directorySize, directoryOffset))
+                    .putShort((short) comment.length).put(comment);
+            end.flip();
+            writeFully(end);
+            channel.close();
+            FileUtils.move(temp, target);
+            finished = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            deflater.end();
+            channel.close();
+            if (!finished) {
+                Files.deleteIfExists(temp);
+            }
+        }
+
+        private long writeLocalHeader(Entry entry, int flags, int method, long crc, long compressedSize, long size)
+                throws IOException {
+            if (count == 0xffff) {
+                throw new IOException("too many entries, zip64 archives are not supported");
+            }
+            final long localHeaderOffset = checkOffset(offset + compressedSize, offset);
+            final ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE + entry.rawName.length)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(LOCAL_HEADER).putShort((short) entry.versionNeeded)
+                    .putShort((short) (flags & ~FLAG_DATA_DESCRIPTOR)).putShort((short) method)
+                    .putInt(entry.time).putInt((int) crc).putInt((int) compressedSize).putInt((int) size)
+                    .putShort((short) entry.rawName.length).putShort((short) 0).put(entry.rawName);
+            header.flip();
+            offset += header.remaining();
+            writeFully(header);
+            return localHeaderOffset;
+        }
+
+        private void addCentralHeader(Entry entry, int flags, int versionNeeded, int method, long crc,
+                                      long compressedSize, long size, long localHeaderOffset) {
+            final int length = CENTRAL_HEADER_SIZE + entry.rawName.length + entry.extra.length + entry.comment.length;
+            if (central.remaining() < length) {
+                final int capacity = Math.max(central.capacity() * 2, central.position() + length);
+                final ByteBuffer grown = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+                central.flip();
+                grown.put(central);
+                central = grown;
+            }
+            central.putInt(CENTRAL_HEADER).putShort((short) entry.versionMadeBy).putShort((short) versionNeeded)
+                    .putShort((short) (flags & ~FLAG_DATA_DESCRIPTOR)).putShort((short) method)
+                    .putInt(entry.time).putInt((int) crc).putInt((int) compressedSize).putInt((int) size)
+                    .putShort((short) entry.rawName.length).putShort((short) entry.extra.length)
+                    .putShort((short) entry.comment.length).putShort((short) 0)
+                    .putShort((short) entry.internalAttributes).putInt((int) entry.externalAttributes)
+                    .putInt((int) localHeaderOffset).put(entry.rawName).put(entry.extra).put(entry.comment);
+            count++;
+        }
+
+        private static long checkOffset(long end, long offset) throws IOException {
+            if (end > 0xffffffffL) {
+                throw new IOException("archive too large, zip64 archives are not supported");
+            }
+            return offset;
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+}